@@ -0,0 +1,72 @@
+package maamissiniva.text.format.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import maamissiniva.text.format.rendering.DisplayWidth;
+
+/**
+ * Cost of display widths compared to string lengths, the width of latin
+ * strings should stay close to the length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DisplayWidthBenchmark {
+
+    @Param({"ascii", "latin", "cjk", "emoji"})
+    public String script;
+
+    private String[] strings;
+
+    @Setup
+    public void setup() {
+        String word;
+        switch (script) {
+        case "ascii" : word = "identifier"; break;
+        case "latin" : word = "d\u00e9j\u00e0 r\u00e9sum\u00e9"; break;
+        case "cjk"   : word = "\u6587\u5b57\u5217\u306e\u5e45"; break;
+        case "emoji" : word = "ok \ud83d\ude00\ud83d\udc4d"; break;
+        default      : throw new IllegalArgumentException(script);
+        }
+        strings = new String[256];
+        for (int i = 0; i < strings.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k <= i % 4; k++)
+                sb.append(word).append(' ');
+            sb.append(i);
+            strings[i] = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public int length() {
+        int n = 0;
+        for (String s : strings)
+            n += s.length();
+        return n;
+    }
+
+    @Benchmark
+    public int width() {
+        int n = 0;
+        for (String s : strings)
+            n += DisplayWidth.of(s);
+        return n;
+    }
+
+}
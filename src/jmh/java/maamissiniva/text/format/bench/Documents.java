@@ -0,0 +1,109 @@
+package maamissiniva.text.format.bench;
+
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.space;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import maamissiniva.text.format.TextDoc;
+
+/**
+ * Document shapes used by benchmarks.
+ */
+public class Documents {
+
+    /**
+     * Left nested horizontal concatenation of identifiers, as produced by
+     * {@link maamissiniva.text.format.TextDocShortcuts#hcat(List)} for long
+     * expressions. Every tenth fragment spans two lines.
+     * @param size number of fragments
+     * @return     document
+     */
+    public static TextDoc hcatChain(int size) {
+        List<TextDoc> ds = new ArrayList<>();
+        for (int i = 0; i < size; i++) 
+            ds.add(i % 10 == 9 ? txt("arg" + i + ",\n") : txt("arg" + i + ", "));
+        return hcat(ds);
+    }
+
+    /**
+     * Table of cells of varying widths.
+     * @param rows    number of rows
+     * @param columns number of columns
+     * @return        document
+     */
+    public static TextDoc table(int rows, int columns) {
+        List<List<TextDoc>> rs = new ArrayList<>();
+        for (int r = 0; r < rows; r++) {
+            List<TextDoc> cs = new ArrayList<>();
+            for (int c = 0; c < columns; c++)
+                cs.add(txt("c" + (r * 31 + c * 17) % 1000 + " "));
+            rs.add(cs);
+        }
+        return new TextDoc.Table(rs);
+    }
+
+    /**
+     * Code like document: nested blocks of statements.
+     * @param depth   nesting depth
+     * @param breadth number of statements and nested blocks per block
+     * @return        document
+     */
+    public static TextDoc code(int depth, int breadth) {
+        List<TextDoc> body = new ArrayList<>();
+        for (int i = 0; i < breadth; i++) {
+            body.add(hcat(txt("int"), space, txt("v" + i), txt(" = "), txt(Integer.toString(i)), txt(";")));
+            if (depth > 0)
+                body.add(code(depth - 1, breadth));
+        }
+        return vcat(txt("if (x" + depth + ") {"), indent(4, vcat(body)), txt("}"));
+    }
+
+    /**
+     * Deeply nested blocks of one statement each, built bottom up so that
+     * the depth is not limited by the stack.
+     * @param depth nesting depth
+     * @return      document
+     */
+    public static TextDoc deepCode(int depth) {
+        TextDoc d = txt("return;");
+        for (int i = 0; i < depth; i++)
+            d = vcat(txt("if (x" + i + ") {"), indent(4, vcat(txt("int v" + i + " = " + i + ";"), d)), txt("}"));
+        return d;
+    }
+
+    /**
+     * Text containing many newlines.
+     * @param lines number of lines
+     * @return      document
+     */
+    public static TextDoc text(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            sb.append(" * comment line number ").append(i).append('\n');
+        return txt(sb.toString());
+    }
+
+    /**
+     * Document of the given shape.
+     * @param shape one of hcat, wideTable, tallTable, code, deepCode, text
+     * @param size  approximate number of nodes
+     * @return      document
+     */
+    public static TextDoc shape(String shape, int size) {
+        switch (shape) {
+        case "hcat"      : return hcatChain(size);
+        case "wideTable" : return table(Math.max(1, size / 100), 100);
+        case "tallTable" : return table(Math.max(1, size / 4), 4);
+        case "code"      : return code(4, Math.max(1, (int) Math.round(Math.pow(size, 0.2))));
+        case "deepCode"  : return deepCode(size);
+        case "text"      : return text(size);
+        default : throw new IllegalArgumentException("unknown shape " + shape);
+        }
+    }
+
+}
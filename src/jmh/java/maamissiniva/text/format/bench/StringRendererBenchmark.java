@@ -0,0 +1,104 @@
+package maamissiniva.text.format.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.rendering.StringRenderer;
+import maamissiniva.text.format.rendering.TextBlock;
+import maamissiniva.text.format.rendering.Utf8Sink;
+
+/**
+ * Rendering throughput over document shapes. Run with the gc profiler 
+ * (default of the jmh task) to get allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringRendererBenchmark {
+
+    @Param({"hcat", "wideTable", "tallTable", "code", "deepCode", "text"})
+    public String shape;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private TextDoc doc;
+
+    private StringBuilder sink;
+
+    private ByteBuffer bytes;
+
+    private Utf8Sink utf8;
+
+    @Setup
+    public void setup() {
+        doc   = Documents.shape(shape, size);
+        sink  = new StringBuilder();
+        bytes = ByteBuffer.allocate(4 * StringRenderer.getText(doc).length() + 16);
+        utf8  = Utf8Sink.of(bytes);
+    }
+
+    @Benchmark
+    public TextBlock block() {
+        return new StringRenderer().render(doc);
+    }
+
+    @Benchmark
+    public TextBlock memoizedBlock() {
+        return new StringRenderer().memoizing().render(doc);
+    }
+
+    @Benchmark
+    public TextBlock parallelBlock() {
+        return new StringRenderer().withParallelThreshold(64).render(doc, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public String text() {
+        return StringRenderer.getText(doc);
+    }
+
+    @Benchmark
+    public String listenedText() {
+        return new StringRenderer().withListener(stats -> { }).text(doc);
+    }
+
+    @Benchmark
+    public int stream() throws IOException {
+        sink.setLength(0);
+        StringRenderer.render(doc, sink);
+        return sink.length();
+    }
+
+    @Benchmark
+    public int utf8() throws IOException {
+        bytes.clear();
+        StringRenderer.render(doc, utf8);
+        return bytes.position();
+    }
+
+    @Benchmark
+    public int encodedText() {
+        return StringRenderer.getText(doc).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+}
@@ -0,0 +1,143 @@
+package maamissiniva.text.format;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Mutable builder of list documents. Documents are appended to an array
+ * that is sealed by {@link #build()} into a single n-ary node, so that
+ * building a document piece by piece does not create nested nodes.
+ * <pre>
+ *    DocBuilder b = DocBuilder.vcatIntercalate(comma);
+ *    for (Field f : fields)
+ *        b.add(f.doc());
+ *    TextDoc d = b.build();
+ * </pre>
+ */
+public class DocBuilder {
+
+    private enum Kind { HCAT, HALI, VCAT, JOIN }
+
+    private final Kind    kind;
+    private final TextDoc separator;
+    private final boolean vertical;
+    private TextDoc[]     docs = new TextDoc[8];
+    private int           size;
+
+    private DocBuilder(Kind kind, TextDoc separator, boolean vertical) {
+        this.kind      = kind;
+        this.separator = separator;
+        this.vertical  = vertical;
+    }
+
+    /**
+     * Builder of an horizontal concatenation.
+     * @return new builder
+     */
+    public static DocBuilder hcat() {
+        return new DocBuilder(Kind.HCAT, null, false);
+    }
+
+    /**
+     * Builder of an horizontal alignment.
+     * @return new builder
+     */
+    public static DocBuilder hali() {
+        return new DocBuilder(Kind.HALI, null, false);
+    }
+
+    /**
+     * Builder of a vertical alignment.
+     * @return new builder
+     */
+    public static DocBuilder vcat() {
+        return new DocBuilder(Kind.VCAT, null, false);
+    }
+
+    /**
+     * Builder of an horizontal concatenation of documents separated by a separator.
+     * @param separator separator
+     * @return          new builder
+     * @see TextDocShortcuts#hcatIntercalate(List, TextDoc)
+     */
+    public static DocBuilder hcatIntercalate(TextDoc separator) {
+        return new DocBuilder(Kind.JOIN, separator, false);
+    }
+
+    /**
+     * Builder of a vertical alignment of documents followed by a separator.
+     * @param separator separator
+     * @return          new builder
+     * @see TextDocShortcuts#vcatIntercalate(List, TextDoc)
+     */
+    public static DocBuilder vcatIntercalate(TextDoc separator) {
+        return new DocBuilder(Kind.JOIN, separator, true);
+    }
+
+    /**
+     * Append a document. Empty documents are dropped unless they are
+     * separated.
+     * @param doc document
+     * @return    this builder
+     */
+    public DocBuilder add(TextDoc doc) {
+        if (doc.isEmpty() && kind != Kind.JOIN)
+            return this;
+        if (size == docs.length)
+            docs = Arrays.copyOf(docs, 2 * size);
+        docs[size++] = doc;
+        return this;
+    }
+
+    /**
+     * Append a string, see {@link TextDocShortcuts#txt(CharSequence)}.
+     * @param s string
+     * @return  this builder
+     */
+    public DocBuilder add(String s) {
+        return add(txt(s));
+    }
+
+    /**
+     * Append documents.
+     * @param ds documents
+     * @return   this builder
+     */
+    public DocBuilder addAll(Iterable<? extends TextDoc> ds) {
+        for (TextDoc d : ds)
+            add(d);
+        return this;
+    }
+
+    /**
+     * Number of appended documents.
+     * @return number of documents
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Document of the appended documents. The builder is not reset, more
+     * documents can be appended to build larger documents.
+     * @return document
+     */
+    public TextDoc build() {
+        if (size == 0)
+            return empty;
+        if (size == 1)
+            return docs[0];
+        List<TextDoc> ds = Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(docs, size)));
+        switch (kind) {
+        case HCAT : return new TextDoc.HorizontalConcatList(ds);
+        case HALI : return new TextDoc.HorizontalAlignList(ds);
+        case VCAT : return new TextDoc.VerticalAlign(ds);
+        default   : return new TextDoc.Join(ds, separator, vertical);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package maamissiniva.text.format;
+
+import static maamissiniva.util.Iterables.it;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import maamissiniva.text.format.rendering.TextSlice;
+
+/**
+ * Factory of hash consed documents: structurally equal documents built by
+ * an interner are the same instance. Large generated documents share their
+ * repeated tokens and sub documents, which shrinks the heap and makes
+ * identity keyed caches ({@link maamissiniva.text.format.rendering.RenderCache})
+ * hit for equal sub documents.
+ * <p>
+ * Documents are interned as they are built: the children of a node are
+ * expected to be interned, so that they are compared by identity. Interned
+ * documents are weakly referenced, they are dropped once the documents are
+ * not used. Interners are thread safe.
+ * <pre>
+ *    Interner i = TextDocShortcuts.interner();
+ *    TextDoc  a = i.indent(4, i.txt("x"));
+ *    TextDoc  b = i.indent(4, i.txt("x"));  // a == b
+ * </pre>
+ */
+public class Interner {
+
+    private final Map<TextDoc, WeakReference<TextDoc>> docs = new WeakHashMap<>();
+
+    Interner() {
+    }
+
+    /**
+     * Canonical instance of a document.
+     * @param doc document whose children are interned
+     * @return    interned document equal to the given one
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends TextDoc> T intern(T doc) {
+        WeakReference<TextDoc> r = docs.get(doc);
+        TextDoc                d = r == null ? null : r.get();
+        if (d != null)
+            return (T) d;
+        docs.put(doc, new WeakReference<>(doc));
+        return doc;
+    }
+
+    /**
+     * Number of interned documents.
+     * @return number of documents that are still referenced
+     */
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    /**
+     * @see TextDocShortcuts#txt(CharSequence)
+     */
+    public TextDoc txt(CharSequence s) {
+        return intern(TextDocShortcuts.vcat(it(TextSlice.lines(s)).map(l -> (TextDoc) intern(new TextDoc.Text(l)))));
+    }
+
+    /**
+     * @see TextDocShortcuts#hcat(List)
+     */
+    public TextDoc hcat(List<TextDoc> ds) {
+        return intern(TextDocShortcuts.hcat(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#hcat(TextDoc...)
+     */
+    public TextDoc hcat(TextDoc... ds) {
+        return intern(TextDocShortcuts.hcat(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#hali(List)
+     */
+    public TextDoc hali(List<TextDoc> ds) {
+        return intern(TextDocShortcuts.hali(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#hali(TextDoc...)
+     */
+    public TextDoc hali(TextDoc... ds) {
+        return intern(TextDocShortcuts.hali(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#vcat(List)
+     */
+    public TextDoc vcat(List<TextDoc> ds) {
+        return intern(TextDocShortcuts.vcat(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#vcat(TextDoc...)
+     */
+    public TextDoc vcat(TextDoc... ds) {
+        return intern(TextDocShortcuts.vcat(ds));
+    }
+
+    /**
+     * @see TextDocShortcuts#indent(int, TextDoc)
+     */
+    public TextDoc indent(int indent, TextDoc doc) {
+        return intern(TextDocShortcuts.indent(indent, doc));
+    }
+
+    /**
+     * @see TextDocShortcuts#group(TextDoc)
+     */
+    public TextDoc group(TextDoc doc) {
+        return intern(TextDocShortcuts.group(doc));
+    }
+
+    /**
+     * @see TextDocShortcuts#nest(int, TextDoc)
+     */
+    public TextDoc nest(int indent, TextDoc doc) {
+        return intern(TextDocShortcuts.nest(indent, doc));
+    }
+
+    /**
+     * @see TextDocShortcuts#line()
+     */
+    public TextDoc line() {
+        return intern(TextDocShortcuts.line());
+    }
+
+    /**
+     * @see TextDocShortcuts#softline()
+     */
+    public TextDoc softline() {
+        return intern(TextDocShortcuts.softline());
+    }
+
+    /**
+     * @see TextDocShortcuts#fill(int, String)
+     */
+    public TextDoc fill(int width, String text) {
+        return intern(TextDocShortcuts.fill(width, text));
+    }
+
+    /**
+     * @see TextDocShortcuts#fillOptimal(int, String)
+     */
+    public TextDoc fillOptimal(int width, String text) {
+        return intern(TextDocShortcuts.fillOptimal(width, text));
+    }
+
+    /**
+     * @see TextDocShortcuts#hole(String)
+     */
+    public TextDoc hole(String name) {
+        return intern(TextDocShortcuts.hole(name));
+    }
+
+    /**
+     * @see TextDocShortcuts#vcatIntercalate(List, TextDoc)
+     */
+    public TextDoc vcatIntercalate(List<TextDoc> docs, TextDoc inter) {
+        return intern(TextDocShortcuts.vcatIntercalate(docs, inter));
+    }
+
+    /**
+     * @see TextDocShortcuts#hcatIntercalate(List, TextDoc)
+     */
+    public TextDoc hcatIntercalate(List<TextDoc> docs, TextDoc inter) {
+        return intern(TextDocShortcuts.hcatIntercalate(docs, inter));
+    }
+
+}
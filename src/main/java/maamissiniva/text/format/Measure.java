@@ -0,0 +1,413 @@
+package maamissiniva.text.format;
+
+import java.util.List;
+
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+import maamissiniva.text.format.rendering.DisplayWidth;
+import maamissiniva.text.format.rendering.DocFold;
+import maamissiniva.text.format.rendering.TextString;
+import maamissiniva.text.format.rendering.Wrapping;
+
+/**
+ * Dimensions of a rendered document, computed by the layout rules of
+ * {@link maamissiniva.text.format.rendering.StringRenderer} without
+ * rendering lines.
+ */
+public class Measure {
+
+    public static final Measure empty = new Measure(0, 0, 0);
+
+    /**
+     * Block width, padding included.
+     */
+    public final int width;
+
+    /**
+     * Number of lines.
+     */
+    public final int height;
+
+    /**
+     * Width of the last line once trailing padding is removed.
+     */
+    public final int lastWidth;
+
+    public Measure(int width, int height, int lastWidth) {
+        this.width     = width;
+        this.height    = height;
+        this.lastWidth = lastWidth;
+    }
+
+    /**
+     * Measure of the documents that contain a vertical stream: measuring a
+     * stream would pull its documents, which are then rendered from the
+     * source again (or not at all for a once-only source) and may have
+     * changed. It is cached like the other measures.
+     */
+    private static final Measure unknown = new Measure(-1, -1, -1);
+
+    /**
+     * Measure a document, measures of the sub documents are cached by the
+     * sub documents that have children or that are fills. Measures are
+     * immutable and cached without synchronization, threads that measure
+     * a document concurrently may compute the same measure.
+     * @param doc document
+     * @return    measure
+     * @throws IllegalArgumentException if the document contains a
+     *         {@link VerticalStream vertical stream}, see {@link #measurable(TextDoc)}
+     */
+    public static Measure of(TextDoc doc) {
+        Measure m = DocFold.fold(doc, Structure.children, measured, memo);
+        if (m == unknown)
+            throw new IllegalArgumentException("documents that contain a vertical stream are not measured, see Measure.measurable");
+        return m;
+    }
+
+    /**
+     * Can a document be measured, that is does it not contain a vertical
+     * stream. The documents of the streams are not pulled.
+     * @param doc document
+     * @return    true if {@link #of(TextDoc)} measures the document
+     */
+    public static boolean measurable(TextDoc doc) {
+        return DocFold.fold(doc, Structure.children, measured, memo) != unknown;
+    }
+
+    /**
+     * Memo that uses the measure field of the documents.
+     */
+    private static final DocFold.Memo<Measure> memo = new DocFold.Memo<Measure>() {
+        @Override public Measure get(TextDoc doc) {
+            return doc.accept(cached);
+        }
+        @Override public void put(TextDoc doc, Measure m) {
+            doc.accept(m, cache);
+        }
+    };
+
+    private static final TextDoc.PVisitor<Measure> cached = new TextDoc.PVisitor<Measure>() {
+        @Override public Measure visit(Empty d) {
+            return null;
+        }
+        @Override public Measure visit(Fill d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Group d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Hole d) {
+            return null;
+        }
+        @Override public Measure visit(HorizontalAlign d) {
+            return d.measure;
+        }
+        @Override public Measure visit(HorizontalAlignList d) {
+            return d.measure;
+        }
+        @Override public Measure visit(HorizontalConcat d) {
+            return d.measure;
+        }
+        @Override public Measure visit(HorizontalConcatList d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Indent d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Join d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Nest d) {
+            return d.measure;
+        }
+        @Override public Measure visit(SoftLine d) {
+            return null;
+        }
+        @Override public Measure visit(Table d) {
+            return d.measure;
+        }
+        @Override public Measure visit(Text d) {
+            return null;
+        }
+        @Override public Measure visit(VerticalAlign d) {
+            return d.measure;
+        }
+        @Override public Measure visit(VerticalStream d) {
+            return d.measure;
+        }
+    };
+
+    private static final TextDoc.FVisitor<Measure, Void> cache = new TextDoc.FVisitor<Measure, Void>() {
+        @Override public Void visit(Measure m, Empty d) {
+            return null;
+        }
+        @Override public Void visit(Measure m, Fill d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Group d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Hole d) {
+            return null;
+        }
+        @Override public Void visit(Measure m, HorizontalAlign d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, HorizontalAlignList d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, HorizontalConcat d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, HorizontalConcatList d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Indent d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Join d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Nest d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, SoftLine d) {
+            return null;
+        }
+        @Override public Void visit(Measure m, Table d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, Text d) {
+            return null;
+        }
+        @Override public Void visit(Measure m, VerticalAlign d) {
+            d.measure = m;
+            return null;
+        }
+        @Override public Void visit(Measure m, VerticalStream d) {
+            d.measure = m;
+            return null;
+        }
+    };
+
+    /**
+     * Layout rules of the documents whose descendants are measured, vertical
+     * streams are not measured.
+     */
+    private static final TextDoc.FVisitor<List<Measure>, Measure> measured = new TextDoc.FVisitor<List<Measure>, Measure>() {
+        @Override public Measure visit(List<Measure> c, Empty d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Fill d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Group d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Hole d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalAlign d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalAlignList d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalConcat d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalConcatList d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Indent d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Join d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Nest d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, SoftLine d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Table d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, Text d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, VerticalAlign d) {
+            return c.contains(unknown) ? unknown : combine.visit(c, d);
+        }
+        @Override public Measure visit(List<Measure> c, VerticalStream d) {
+            return unknown;
+        }
+    };
+
+    /**
+     * Layout rules, see {@link maamissiniva.text.format.rendering.Blocks}.
+     */
+    private static final TextDoc.FVisitor<List<Measure>, Measure> combine = new TextDoc.FVisitor<List<Measure>, Measure>() {
+        @Override public Measure visit(List<Measure> c, Empty d) {
+            return empty;
+        }
+        @Override public Measure visit(List<Measure> c, Fill d) {
+            Wrapping w    = Wrapping.of(d.text, d.width, d.optimal);
+            int      last = w.width(w.height() - 1);
+            return new Measure(w.width(), w.height(), last);
+        }
+        @Override public Measure visit(List<Measure> c, Group d) {
+            return c.get(0);
+        }
+        @Override public Measure visit(List<Measure> c, Hole d) {
+            return empty;
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalAlign d) {
+            return hali(c.get(0), c.get(1));
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalAlignList d) {
+            Measure m = empty;
+            for (Measure x : c)
+                m = hali(m, x);
+            return m;
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalConcat d) {
+            return hcat(c.get(0), c.get(1));
+        }
+        @Override public Measure visit(List<Measure> c, HorizontalConcatList d) {
+            Measure m = empty;
+            for (Measure x : c)
+                m = hcat(m, x);
+            return m;
+        }
+        @Override public Measure visit(List<Measure> c, Indent d) {
+            Measure m = c.get(0);
+            int indent = Math.max(0, d.indent);
+            return new Measure(m.width + (m.height == 0 ? 0 : indent), m.height, m.lastWidth == 0 ? 0 : m.lastWidth + indent);
+        }
+        @Override public Measure visit(List<Measure> c, Join d) {
+            Measure separator = c.get(0);
+            Measure m         = empty;
+            for (int i = 1; i < c.size(); i++) {
+                Measure x = c.get(i);
+                if (! d.vertical)
+                    m = hcat(i == 1 ? m : hcat(m, separator), x);
+                else
+                    m = vali(m, i == c.size() - 1 ? x : hcat(x, separator));
+            }
+            return m;
+        }
+        @Override public Measure visit(List<Measure> c, Nest d) {
+            return c.get(0);
+        }
+        @Override public Measure visit(List<Measure> c, SoftLine d) {
+            int width = DisplayWidth.of(d.flat);
+            return new Measure(width, 1, TextString.isPadding(d.flat) ? 0 : width);
+        }
+        @Override public Measure visit(List<Measure> c, Table d) {
+            int   columns = DocFold.columns(d);
+            int   rows    = d.rows.size();
+            int[] widths  = new int[columns];
+            int   height  = 0;
+            int   last    = 0;
+            for (int i = 0; i < rows * columns; i++)
+                widths[i % columns] = Math.max(widths[i % columns], c.get(i).width);
+            for (int r = 0; r < rows; r++) {
+                int rHeight = 0;
+                for (int k = 0; k < columns; k++)
+                    rHeight = Math.max(rHeight, c.get(r * columns + k).height);
+                if (rHeight == 0)
+                    continue;
+                height += rHeight;
+                last = 0;
+                int offset = 0;
+                for (int k = 0; k < columns; k++) {
+                    Measure m = c.get(r * columns + k);
+                    if (m.height == rHeight && m.lastWidth > 0)
+                        last = offset + m.lastWidth;
+                    offset += widths[k];
+                }
+            }
+            int width = 0;
+            for (int w : widths)
+                width += w;
+            return new Measure(height == 0 ? 0 : width, height, last);
+        }
+        @Override public Measure visit(List<Measure> c, Text d) {
+            int width = d.width();
+            return new Measure(width, 1, TextString.isPadding(d.chars) ? 0 : width);
+        }
+        @Override public Measure visit(List<Measure> c, VerticalAlign d) {
+            Measure m = empty;
+            for (Measure x : c)
+                m = vali(m, x);
+            return m;
+        }
+        @Override public Measure visit(List<Measure> c, VerticalStream d) {
+            return unknown;
+        }
+    };
+
+    private static Measure hali(Measure l, Measure r) {
+        if (l.height == 0)
+            return r;
+        if (r.height == 0)
+            return l;
+        int last;
+        if (l.height > r.height)
+            last = l.lastWidth;
+        else if (r.lastWidth > 0)
+            last = l.width + r.lastWidth;
+        else
+            last = l.height == r.height ? l.lastWidth : 0;
+        return new Measure(l.width + r.width, Math.max(l.height, r.height), last);
+    }
+
+    private static Measure hcat(Measure l, Measure r) {
+        if (l.height == 0)
+            return r;
+        if (r.height == 0)
+            return l;
+        int last;
+        if (r.lastWidth > 0)
+            last = l.width + r.lastWidth;
+        else
+            last = r.height == 1 ? l.lastWidth : 0;
+        return new Measure(l.width + r.width, l.height + r.height - 1, last);
+    }
+
+    private static Measure vali(Measure t, Measure b) {
+        return new Measure(Math.max(t.width, b.width), t.height + b.height, b.height > 0 ? b.lastWidth : t.lastWidth);
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " (" + lastWidth + ")";
+    }
+
+}
@@ -0,0 +1,507 @@
+package maamissiniva.text.format;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+import maamissiniva.text.format.rendering.Blocks;
+import maamissiniva.text.format.rendering.DocFold;
+import maamissiniva.text.format.rendering.StringRenderer;
+import maamissiniva.text.format.rendering.TextBlock;
+import maamissiniva.text.format.rendering.Wrapping;
+
+/**
+ * Document encoded in parallel primitive arrays: node kinds, string pool
+ * indices, integer values (indentations, widths, columns) and child
+ * offsets into a link array. Nodes are stored children first, the root is
+ * the last node, and shared sub documents are stored once. Strings are
+ * stored once in a pool of characters.
+ * <p>
+ * The arrays are buffers, so that an encoded document written to a file is
+ * read back by mapping the file: the document is not parsed and its arrays
+ * are not copied on the heap. Rendering runs on the encoding in a single
+ * pass over the nodes, without page width (groups are flat), use
+ * {@link #toDoc()} for the other renders.
+ * <pre>
+ *    PackedDoc.of(doc).write(path);
+ *    String    text = PackedDoc.read(path).text();
+ * </pre>
+ * Vertical streams are pulled when they are encoded and are encoded as
+ * vertical alignments, table rows are padded to the number of columns.
+ */
+public class PackedDoc {
+
+    private static final byte EMPTY        = 0;
+    private static final byte FILL         = 1;
+    private static final byte FILL_OPTIMAL = 2;
+    private static final byte GROUP        = 3;
+    private static final byte HOLE         = 4;
+    private static final byte HALI         = 5;
+    private static final byte HALI_LIST    = 6;
+    private static final byte HCAT         = 7;
+    private static final byte HCAT_LIST    = 8;
+    private static final byte INDENT       = 9;
+    private static final byte JOIN         = 10;
+    private static final byte VJOIN        = 11;
+    private static final byte NEST         = 12;
+    private static final byte SOFTLINE     = 13;
+    private static final byte TABLE        = 14;
+    private static final byte TEXT         = 15;
+    private static final byte VALI         = 16;
+
+    private static final int MAGIC   = 0x54444F43;
+    private static final int VERSION = 1;
+    private static final int HEADER  = 24;
+
+    private final int        nodes;
+    private final ByteBuffer kinds;
+    private final IntBuffer  strings;
+    private final IntBuffer  values;
+    private final IntBuffer  offsets;
+    private final IntBuffer  links;
+    private final IntBuffer  stringOffsets;
+    private final CharBuffer chars;
+
+    private PackedDoc(int nodes, ByteBuffer kinds, IntBuffer strings, IntBuffer values, IntBuffer offsets, IntBuffer links, IntBuffer stringOffsets, CharBuffer chars) {
+        this.nodes         = nodes;
+        this.kinds         = kinds;
+        this.strings       = strings;
+        this.values        = values;
+        this.offsets       = offsets;
+        this.links         = links;
+        this.stringOffsets = stringOffsets;
+        this.chars         = chars;
+    }
+
+    /**
+     * Encode a document.
+     * @param doc document
+     * @return    encoded document
+     */
+    public static PackedDoc of(TextDoc doc) {
+        Encoder e = new Encoder();
+        DocFold.fold(doc, DocFold.children, e, DocFold.identityMemo());
+        return e.build();
+    }
+
+    /**
+     * Read a document written by {@link #write(Path)}. The file is mapped,
+     * the document is valid as long as the file is not changed. The node
+     * kinds, links and string indices are checked once, in a pass over the
+     * arrays, so that rendering a corrupted file does not fail or loop.
+     * @param file file
+     * @return     encoded document
+     * @throws IOException if the file can not be read or is not an encoded
+     *                     document
+     */
+    public static PackedDoc read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER)
+                throw new IOException("not a packed document: " + file);
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION)
+                throw new IOException("not a packed document: " + file);
+            int nodes   = b.getInt(8);
+            int links   = b.getInt(12);
+            int strings = b.getInt(16);
+            int chars   = b.getInt(20);
+            if (nodes <= 0 || links < 0 || strings < 0 || chars < 0 || size(nodes, links, strings, chars) != ch.size())
+                throw new IOException("corrupted packed document: " + file);
+            int p = HEADER;
+            ByteBuffer kindsBuffer   = slice(b, p, nodes);
+            p += align(nodes);
+            IntBuffer  stringsBuffer = slice(b, p, 4 * nodes).asIntBuffer();
+            p += 4 * nodes;
+            IntBuffer  valuesBuffer  = slice(b, p, 4 * nodes).asIntBuffer();
+            p += 4 * nodes;
+            IntBuffer  offsetsBuffer = slice(b, p, 4 * (nodes + 1)).asIntBuffer();
+            p += 4 * (nodes + 1);
+            IntBuffer  linksBuffer   = slice(b, p, 4 * links).asIntBuffer();
+            p += 4 * links;
+            IntBuffer  poolBuffer    = slice(b, p, 4 * (strings + 1)).asIntBuffer();
+            p += 4 * (strings + 1);
+            CharBuffer charsBuffer   = slice(b, p, 2 * chars).asCharBuffer();
+            String     error         = check(nodes, kindsBuffer, stringsBuffer, valuesBuffer, offsetsBuffer, linksBuffer, poolBuffer, chars);
+            if (error != null)
+                throw new IOException("corrupted packed document: " + file + ", " + error);
+            return new PackedDoc(nodes, kindsBuffer, stringsBuffer, valuesBuffer, offsetsBuffer, linksBuffer, poolBuffer, charsBuffer);
+        }
+    }
+
+    /**
+     * Write the document to a file through a mapped buffer.
+     * @param file file, replaced if it exists
+     * @throws IOException if the file can not be written
+     */
+    public void write(Path file) throws IOException {
+        int  links   = this.links.limit();
+        int  strings = stringOffsets.limit() - 1;
+        long size    = size(nodes, links, strings, chars.limit());
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("packed document too large: " + size + " bytes");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            b.putInt(MAGIC).putInt(VERSION).putInt(nodes).putInt(links).putInt(strings).putInt(chars.limit());
+            b.put(kinds.duplicate());
+            for (int i = nodes; i < align(nodes); i++)
+                b.put((byte) 0);
+            b.asIntBuffer().put(this.strings.duplicate());
+            skip(b, 4 * nodes);
+            b.asIntBuffer().put(values.duplicate());
+            skip(b, 4 * nodes);
+            b.asIntBuffer().put(offsets.duplicate());
+            skip(b, 4 * (nodes + 1));
+            b.asIntBuffer().put(this.links.duplicate());
+            skip(b, 4 * links);
+            b.asIntBuffer().put(stringOffsets.duplicate());
+            skip(b, 4 * (strings + 1));
+            b.asCharBuffer().put(chars.duplicate());
+            b.force();
+        }
+    }
+
+    /**
+     * Number of nodes.
+     * @return size
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * Render the document as a block, groups are flat. Nodes are combined
+     * in storage order, the block of a node is released once its last
+     * parent is combined.
+     * @return block, same as the block of {@link StringRenderer#render(TextDoc)}
+     *         without page width
+     */
+    public TextBlock render() {
+        int[] uses = new int[nodes];
+        for (int i = 0; i < links.limit(); i++)
+            uses[links.get(i)]++;
+        TextBlock[] blocks = new TextBlock[nodes];
+        String[]    pool   = new String[stringOffsets.limit() - 1];
+        for (int i = 0; i < nodes; i++) {
+            int             from = offsets.get(i);
+            int             to   = offsets.get(i + 1);
+            List<TextBlock> c    = from == to ? Collections.emptyList() : new ArrayList<>(to - from);
+            for (int k = from; k < to; k++)
+                c.add(blocks[links.get(k)]);
+            blocks[i] = block(i, c, pool);
+            for (int k = from; k < to; k++)
+                if (--uses[links.get(k)] == 0)
+                    blocks[links.get(k)] = null;
+        }
+        return blocks[nodes - 1];
+    }
+
+    /**
+     * Render the document in a string.
+     * @return text, same as {@link StringRenderer#getText(TextDoc)}
+     */
+    public String text() {
+        return StringRenderer.getText(render());
+    }
+
+    /**
+     * Decode the document.
+     * @return document, sub documents shared in the encoding are shared
+     */
+    public TextDoc toDoc() {
+        TextDoc[] docs = new TextDoc[nodes];
+        String[]  pool = new String[stringOffsets.limit() - 1];
+        for (int i = 0; i < nodes; i++) {
+            int           from = offsets.get(i);
+            int           to   = offsets.get(i + 1);
+            List<TextDoc> c    = from == to ? Collections.emptyList() : new ArrayList<>(to - from);
+            for (int k = from; k < to; k++)
+                c.add(docs[links.get(k)]);
+            docs[i] = doc(i, c, pool);
+        }
+        return docs[nodes - 1];
+    }
+
+    private TextBlock block(int i, List<TextBlock> c, String[] pool) {
+        switch (kinds.get(i)) {
+        case EMPTY        : return TextBlock.empty;
+        case FILL         : return Blocks.fill(Wrapping.of(string(i, pool), values.get(i), false));
+        case FILL_OPTIMAL : return Blocks.fill(Wrapping.of(string(i, pool), values.get(i), true));
+        case GROUP        : return c.get(0);
+        case HOLE         : throw new IllegalStateException("hole " + string(i, pool) + " is not filled, holes are filled by templates");
+        case HALI         : return Blocks.hali(c.get(0), c.get(1));
+        case HALI_LIST    : return Blocks.hali(c);
+        case HCAT         : return Blocks.hcat(c.get(0), c.get(1));
+        case HCAT_LIST    : return Blocks.hcat(c);
+        case INDENT       : return Blocks.indent(values.get(i), c.get(0));
+        case JOIN         : return Blocks.join(c.get(0), c.subList(1, c.size()), false);
+        case VJOIN        : return Blocks.join(c.get(0), c.subList(1, c.size()), true);
+        case NEST         : return c.get(0);
+        case SOFTLINE     : return Blocks.text(string(i, pool));
+        case TABLE        : return Blocks.table(values.get(i), c);
+        case TEXT         : return Blocks.text(string(i, pool));
+        case VALI         : return Blocks.vali(c);
+        default           : throw new IllegalStateException("unknown node kind " + kinds.get(i));
+        }
+    }
+
+    private TextDoc doc(int i, List<TextDoc> c, String[] pool) {
+        switch (kinds.get(i)) {
+        case EMPTY        : return empty;
+        case FILL         : return new Fill(string(i, pool), values.get(i), false);
+        case FILL_OPTIMAL : return new Fill(string(i, pool), values.get(i), true);
+        case GROUP        : return new Group(c.get(0));
+        case HOLE         : return new Hole(string(i, pool));
+        case HALI         : return new HorizontalAlign(c.get(0), c.get(1));
+        case HALI_LIST    : return new HorizontalAlignList(c);
+        case HCAT         : return new HorizontalConcat(c.get(0), c.get(1));
+        case HCAT_LIST    : return new HorizontalConcatList(c);
+        case INDENT       : return new Indent(values.get(i), c.get(0));
+        case JOIN         : return new Join(c.subList(1, c.size()), c.get(0), false);
+        case VJOIN        : return new Join(c.subList(1, c.size()), c.get(0), true);
+        case NEST         : return new Nest(values.get(i), c.get(0));
+        case SOFTLINE     : return new SoftLine(string(i, pool));
+        case TABLE        : return new Table(rows(values.get(i), c));
+        case TEXT         : return new Text(string(i, pool));
+        case VALI         : return new VerticalAlign(c);
+        default           : throw new IllegalStateException("unknown node kind " + kinds.get(i));
+        }
+    }
+
+    private static List<List<TextDoc>> rows(int columns, List<TextDoc> cells) {
+        List<List<TextDoc>> rows = new ArrayList<>();
+        for (int k = 0; k + columns <= cells.size() && columns > 0; k += columns)
+            rows.add(cells.subList(k, k + columns));
+        return rows;
+    }
+
+    /**
+     * String of a node, decoded once per pass over the nodes.
+     * @param i    node
+     * @param pool decoded strings
+     * @return     string from the pool
+     */
+    private String string(int i, String[] pool) {
+        int s = strings.get(i);
+        if (pool[s] == null)
+            pool[s] = chars.subSequence(stringOffsets.get(s), stringOffsets.get(s + 1)).toString();
+        return pool[s];
+    }
+
+    /**
+     * Check the arrays of a read document: node kinds are known and have
+     * the number of children of their kind (whole rows for tables), nodes
+     * link to previous nodes only, string indices are in the pool and string
+     * offsets are in the characters.
+     * @return error message, null if the arrays are consistent
+     */
+    private static String check(int nodes, ByteBuffer kinds, IntBuffer strings, IntBuffer values, IntBuffer offsets, IntBuffer links, IntBuffer stringOffsets, int chars) {
+        int pool = stringOffsets.limit() - 1;
+        if (stringOffsets.get(0) != 0 || stringOffsets.get(pool) != chars)
+            return "string offsets out of bounds";
+        for (int s = 0; s < pool; s++)
+            if (stringOffsets.get(s) > stringOffsets.get(s + 1))
+                return "string " + s + " has a negative length";
+        if (offsets.get(0) != 0 || offsets.get(nodes) != links.limit())
+            return "link offsets out of bounds";
+        for (int i = 0; i < nodes; i++) {
+            byte kind = kinds.get(i);
+            if (kind < EMPTY || kind > VALI)
+                return "node " + i + " has unknown kind " + kind;
+            int s = strings.get(i);
+            if (s < -1 || s >= pool || s == -1 && hasString(kind))
+                return "node " + i + " has string index " + s + " out of the pool of " + pool + " strings";
+            int from = offsets.get(i);
+            int to   = offsets.get(i + 1);
+            if (from > to)
+                return "node " + i + " has a negative number of children";
+            if (! hasChildren(kind, values.get(i), to - from))
+                return "node " + i + " of kind " + kind + " has " + (to - from) + " children";
+            for (int k = from; k < to; k++)
+                if (links.get(k) < 0 || links.get(k) >= i)
+                    return "node " + i + " links to node " + links.get(k);
+        }
+        return null;
+    }
+
+    private static boolean hasString(byte kind) {
+        return kind == FILL || kind == FILL_OPTIMAL || kind == HOLE || kind == SOFTLINE || kind == TEXT;
+    }
+
+    private static boolean hasChildren(byte kind, int value, int n) {
+        switch (kind) {
+        case GROUP     :
+        case INDENT    :
+        case NEST      : return n == 1;
+        case HALI      :
+        case HCAT      : return n == 2;
+        case JOIN      :
+        case VJOIN     : return n >= 1;
+        case TABLE     : return value > 0 ? n % value == 0 : value == 0 && n == 0;
+        case HALI_LIST :
+        case HCAT_LIST :
+        case VALI      : return true;
+        default        : return n == 0;
+        }
+    }
+
+    private static long size(int nodes, int links, int strings, int chars) {
+        return HEADER + align(nodes) + 4L * (3L * nodes + 1 + links + strings + 1) + 2L * chars;
+    }
+
+    private static int align(int n) {
+        return (n + 3) & ~3;
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int position, int size) {
+        ByteBuffer d = b.duplicate();
+        d.position(position);
+        d.limit(position + size);
+        return d.slice();
+    }
+
+    private static void skip(ByteBuffer b, int size) {
+        b.position(b.position() + size);
+    }
+
+    /**
+     * Appends the nodes in fold order, children first. The fold result is
+     * the node index.
+     */
+    private static class Encoder implements TextDoc.FVisitor<List<Integer>, Integer> {
+
+        private final Map<String, Integer> pool          = new HashMap<>();
+        private final StringBuilder        chars         = new StringBuilder();
+        private int[]                      stringOffsets = new int[64];
+        private byte[]                     kinds         = new byte[64];
+        private int[]                      strings       = new int[64];
+        private int[]                      values        = new int[64];
+        private int[]                      offsets       = new int[65];
+        private int[]                      links         = new int[64];
+        private int                        nodes;
+        private int                        linked;
+
+        private Integer add(byte kind, String s, int value, List<Integer> c) {
+            if (nodes + 1 == offsets.length) {
+                kinds   = Arrays.copyOf(kinds, 2 * nodes);
+                strings = Arrays.copyOf(strings, 2 * nodes);
+                values  = Arrays.copyOf(values, 2 * nodes);
+                offsets = Arrays.copyOf(offsets, 2 * nodes + 1);
+            }
+            if (linked + c.size() > links.length)
+                links = Arrays.copyOf(links, Math.max(2 * links.length, linked + c.size()));
+            for (Integer x : c)
+                links[linked++] = x;
+            kinds[nodes]       = kind;
+            strings[nodes]     = s == null ? -1 : string(s);
+            values[nodes]      = value;
+            offsets[nodes + 1] = linked;
+            return nodes++;
+        }
+
+        private int string(String s) {
+            Integer i = pool.get(s);
+            if (i != null)
+                return i;
+            int n = pool.size();
+            if (n + 1 == stringOffsets.length)
+                stringOffsets = Arrays.copyOf(stringOffsets, 2 * stringOffsets.length);
+            chars.append(s);
+            stringOffsets[n + 1] = chars.length();
+            pool.put(s, n);
+            return n;
+        }
+
+        PackedDoc build() {
+            char[] cs = new char[chars.length()];
+            chars.getChars(0, cs.length, cs, 0);
+            return new PackedDoc(nodes,
+                                 ByteBuffer.wrap(kinds, 0, nodes).slice(),
+                                 IntBuffer.wrap(strings, 0, nodes).slice(),
+                                 IntBuffer.wrap(values, 0, nodes).slice(),
+                                 IntBuffer.wrap(offsets, 0, nodes + 1).slice(),
+                                 IntBuffer.wrap(links, 0, linked).slice(),
+                                 IntBuffer.wrap(stringOffsets, 0, pool.size() + 1).slice(),
+                                 CharBuffer.wrap(cs));
+        }
+
+        @Override public Integer visit(List<Integer> c, Empty d) {
+            return add(EMPTY, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Fill d) {
+            return add(d.optimal ? FILL_OPTIMAL : FILL, d.text, d.width, c);
+        }
+        @Override public Integer visit(List<Integer> c, Group d) {
+            return add(GROUP, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Hole d) {
+            return add(HOLE, d.name, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalAlign d) {
+            return add(HALI, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalAlignList d) {
+            return add(HALI_LIST, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalConcat d) {
+            return add(HCAT, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalConcatList d) {
+            return add(HCAT_LIST, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Indent d) {
+            return add(INDENT, null, d.indent, c);
+        }
+        @Override public Integer visit(List<Integer> c, Join d) {
+            return add(d.vertical ? VJOIN : JOIN, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Nest d) {
+            return add(NEST, null, d.indent, c);
+        }
+        @Override public Integer visit(List<Integer> c, SoftLine d) {
+            return add(SOFTLINE, d.flat, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Table d) {
+            return add(TABLE, null, DocFold.columns(d), c);
+        }
+        @Override public Integer visit(List<Integer> c, Text d) {
+            return add(TEXT, d.chars.toString(), 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, VerticalAlign d) {
+            return add(VALI, null, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, VerticalStream d) {
+            return add(VALI, null, 0, c);
+        }
+
+    }
+
+}
@@ -0,0 +1,379 @@
+package maamissiniva.text.format;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+import maamissiniva.text.format.rendering.DocFold;
+import maamissiniva.text.format.rendering.TextSlice;
+
+/**
+ * Structural equality and hash codes of documents. Documents are equal if
+ * they are made of the same nodes with the same fields, vertical streams
+ * are only equal to themselves. Hash codes are cached by the nodes that
+ * have children, leaves hash their fields. Both hashing and comparison use
+ * explicit stacks so that deep documents do not overflow the thread stack.
+ * <p>
+ * Cached hash codes are written without synchronization, like the hash
+ * code of a {@link String}: threads that hash a document concurrently may
+ * compute the same hash code, they never read a wrong one.
+ */
+class Structure {
+
+    private Structure() {
+    }
+
+    /**
+     * Hash code of a document, the hash codes of the sub documents are
+     * cached by the sub documents.
+     * @param doc document
+     * @return    hash code
+     */
+    static int hashCode(TextDoc doc) {
+        return DocFold.fold(doc, children, combine, memo);
+    }
+
+    /**
+     * Structural equality. Documents with different hash codes are not
+     * compared, a pair of shared sub documents is compared once.
+     * @param a document
+     * @param b document
+     * @return  true if the documents are equal
+     */
+    static boolean equals(TextDoc a, TextDoc b) {
+        Deque<TextDoc> stack    = new ArrayDeque<>();
+        Set<Pair>      compared = null;
+        stack.push(a);
+        stack.push(b);
+        while (! stack.isEmpty()) {
+            TextDoc y = stack.pop();
+            TextDoc x = stack.pop();
+            if (x == y)
+                continue;
+            if (x.getClass() != y.getClass() || hashCode(x) != hashCode(y) || ! x.accept(y, same))
+                return false;
+            List<TextDoc> xs = x.accept(children);
+            if (xs.isEmpty())
+                continue;
+            if (compared == null)
+                compared = new HashSet<>();
+            if (! compared.add(new Pair(x, y)))
+                continue;
+            List<TextDoc> ys = y.accept(children);
+            if (xs.size() != ys.size())
+                return false;
+            for (int i = 0; i < xs.size(); i++) {
+                stack.push(xs.get(i));
+                stack.push(ys.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pair of documents compared by identity.
+     */
+    private static class Pair {
+
+        final TextDoc x;
+        final TextDoc y;
+
+        Pair(TextDoc x, TextDoc y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(x) + System.identityHashCode(y);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Pair && ((Pair) o).x == x && ((Pair) o).y == y;
+        }
+
+    }
+
+    /**
+     * Children that are compared, hashed and measured, the documents of
+     * vertical streams are not pulled.
+     */
+    static final TextDoc.PVisitor<List<TextDoc>> children = DocFold.unstreamed;
+
+    /**
+     * Memo that uses the hash field of the documents, 0 being not computed.
+     */
+    private static final DocFold.Memo<Integer> memo = new DocFold.Memo<Integer>() {
+        @Override public Integer get(TextDoc doc) {
+            int h = doc.accept(cached);
+            return h == 0 ? null : h;
+        }
+        @Override public void put(TextDoc doc, Integer h) {
+            doc.accept(h, cache);
+        }
+    };
+
+    private static final TextDoc.PVisitor<Integer> cached = new TextDoc.PVisitor<Integer>() {
+        @Override public Integer visit(Empty d) {
+            return 0;
+        }
+        @Override public Integer visit(Fill d) {
+            return 0;
+        }
+        @Override public Integer visit(Group d) {
+            return d.hash;
+        }
+        @Override public Integer visit(Hole d) {
+            return 0;
+        }
+        @Override public Integer visit(HorizontalAlign d) {
+            return d.hash;
+        }
+        @Override public Integer visit(HorizontalAlignList d) {
+            return d.hash;
+        }
+        @Override public Integer visit(HorizontalConcat d) {
+            return d.hash;
+        }
+        @Override public Integer visit(HorizontalConcatList d) {
+            return d.hash;
+        }
+        @Override public Integer visit(Indent d) {
+            return d.hash;
+        }
+        @Override public Integer visit(Join d) {
+            return d.hash;
+        }
+        @Override public Integer visit(Nest d) {
+            return d.hash;
+        }
+        @Override public Integer visit(SoftLine d) {
+            return 0;
+        }
+        @Override public Integer visit(Table d) {
+            return d.hash;
+        }
+        @Override public Integer visit(Text d) {
+            return 0;
+        }
+        @Override public Integer visit(VerticalAlign d) {
+            return d.hash;
+        }
+        @Override public Integer visit(VerticalStream d) {
+            return d.hashCode();
+        }
+    };
+
+    private static final TextDoc.FVisitor<Integer, Void> cache = new TextDoc.FVisitor<Integer, Void>() {
+        @Override public Void visit(Integer h, Empty d) {
+            return null;
+        }
+        @Override public Void visit(Integer h, Fill d) {
+            return null;
+        }
+        @Override public Void visit(Integer h, Group d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, Hole d) {
+            return null;
+        }
+        @Override public Void visit(Integer h, HorizontalAlign d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, HorizontalAlignList d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, HorizontalConcat d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, HorizontalConcatList d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, Indent d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, Join d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, Nest d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, SoftLine d) {
+            return null;
+        }
+        @Override public Void visit(Integer h, Table d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, Text d) {
+            return null;
+        }
+        @Override public Void visit(Integer h, VerticalAlign d) {
+            d.hash = h;
+            return null;
+        }
+        @Override public Void visit(Integer h, VerticalStream d) {
+            return null;
+        }
+    };
+
+    /**
+     * Hash code of a node: node type, fields and hash codes of the children.
+     */
+    private static final TextDoc.FVisitor<List<Integer>, Integer> combine = new TextDoc.FVisitor<List<Integer>, Integer>() {
+        @Override public Integer visit(List<Integer> c, Empty d) {
+            return hash(1, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Fill d) {
+            return hash(15, 31 * (31 * d.text.hashCode() + d.width) + (d.optimal ? 1 : 0), c);
+        }
+        @Override public Integer visit(List<Integer> c, Group d) {
+            return hash(2, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Hole d) {
+            return hash(3, d.name.hashCode(), c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalAlign d) {
+            return hash(4, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalAlignList d) {
+            return hash(5, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalConcat d) {
+            return hash(6, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, HorizontalConcatList d) {
+            return hash(7, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Indent d) {
+            return hash(8, d.indent, c);
+        }
+        @Override public Integer visit(List<Integer> c, Join d) {
+            return hash(9, d.vertical ? 1 : 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, Nest d) {
+            return hash(10, d.indent, c);
+        }
+        @Override public Integer visit(List<Integer> c, SoftLine d) {
+            return hash(11, d.flat.hashCode(), c);
+        }
+        @Override public Integer visit(List<Integer> c, Table d) {
+            int h = 0;
+            for (List<TextDoc> r : d.rows)
+                h = 31 * h + r.size();
+            return hash(12, h, c);
+        }
+        @Override public Integer visit(List<Integer> c, Text d) {
+            return hash(13, TextSlice.hash(d.chars), c);
+        }
+        @Override public Integer visit(List<Integer> c, VerticalAlign d) {
+            return hash(14, 0, c);
+        }
+        @Override public Integer visit(List<Integer> c, VerticalStream d) {
+            return d.hashCode();
+        }
+    };
+
+    /**
+     * Hash code of a node.
+     * @param type   node type
+     * @param fields hash code of the node fields
+     * @param c      hash codes of the children
+     * @return       hash code, not 0
+     */
+    private static int hash(int type, int fields, List<Integer> c) {
+        int h = 31 * type + fields;
+        for (int x : c)
+            h = 31 * h + x;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Are the fields of two nodes of the same type equal, children excluded.
+     */
+    private static final TextDoc.FVisitor<TextDoc, Boolean> same = new TextDoc.FVisitor<TextDoc, Boolean>() {
+        @Override public Boolean visit(TextDoc o, Empty d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, Fill d) {
+            Fill f = (Fill) o;
+            return d.text.equals(f.text) && d.width == f.width && d.optimal == f.optimal;
+        }
+        @Override public Boolean visit(TextDoc o, Group d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, Hole d) {
+            return d.name.equals(((Hole) o).name);
+        }
+        @Override public Boolean visit(TextDoc o, HorizontalAlign d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, HorizontalAlignList d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, HorizontalConcat d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, HorizontalConcatList d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, Indent d) {
+            return d.indent == ((Indent) o).indent;
+        }
+        @Override public Boolean visit(TextDoc o, Join d) {
+            return d.vertical == ((Join) o).vertical;
+        }
+        @Override public Boolean visit(TextDoc o, Nest d) {
+            return d.indent == ((Nest) o).indent;
+        }
+        @Override public Boolean visit(TextDoc o, SoftLine d) {
+            return d.flat.equals(((SoftLine) o).flat);
+        }
+        @Override public Boolean visit(TextDoc o, Table d) {
+            List<List<TextDoc>> rows = ((Table) o).rows;
+            if (d.rows.size() != rows.size())
+                return false;
+            for (int i = 0; i < rows.size(); i++)
+                if (d.rows.get(i).size() != rows.get(i).size())
+                    return false;
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, Text d) {
+            return TextSlice.contentEquals(d.chars, ((Text) o).chars);
+        }
+        @Override public Boolean visit(TextDoc o, VerticalAlign d) {
+            return true;
+        }
+        @Override public Boolean visit(TextDoc o, VerticalStream d) {
+            return d == o;
+        }
+    };
+
+}
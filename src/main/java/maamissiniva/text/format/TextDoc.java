@@ -1,46 +1,78 @@
 package maamissiniva.text.format;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.List;
 
+import maamissiniva.text.format.rendering.DisplayWidth;
 import maamissiniva.text.format.rendering.StringRenderer;
+import maamissiniva.text.format.rendering.Wrapping;
 
 import static maamissiniva.util.Iterables.ar;
 import static maamissiniva.util.Iterables.it;
 
 /**
- * Text document. 
+ * Text document. Documents are immutable, equality and hash codes are
+ * structural.
  */
 public interface TextDoc {
     
     public interface FVisitor<A,B> {
-        B visit(A a, Empty            d);
-        B visit(A a, HorizontalAlign  d);
-        B visit(A a, HorizontalConcat d);
-        B visit(A a, Indent           d);
-        B visit(A a, Table            d);
-        B visit(A a, Text             d);
-        B visit(A a, VerticalAlign    d);
+        B visit(A a, Empty                d);
+        B visit(A a, Fill                 d);
+        B visit(A a, Group                d);
+        B visit(A a, Hole                 d);
+        B visit(A a, HorizontalAlign      d);
+        B visit(A a, HorizontalAlignList  d);
+        B visit(A a, HorizontalConcat     d);
+        B visit(A a, HorizontalConcatList d);
+        B visit(A a, Indent               d);
+        B visit(A a, Join                 d);
+        B visit(A a, Nest                 d);
+        B visit(A a, SoftLine             d);
+        B visit(A a, Table                d);
+        B visit(A a, Text                 d);
+        B visit(A a, VerticalAlign        d);
+        B visit(A a, VerticalStream       d);
     }
     
     public interface PVisitor<A> {
-        A visit(Empty            d);
-        A visit(HorizontalAlign  d);
-        A visit(HorizontalConcat d);
-        A visit(Indent           d);
-        A visit(Table            d);
-        A visit(Text             d);
-        A visit(VerticalAlign    d);
+        A visit(Empty                d);
+        A visit(Fill                 d);
+        A visit(Group                d);
+        A visit(Hole                 d);
+        A visit(HorizontalAlign      d);
+        A visit(HorizontalAlignList  d);
+        A visit(HorizontalConcat     d);
+        A visit(HorizontalConcatList d);
+        A visit(Indent               d);
+        A visit(Join                 d);
+        A visit(Nest                 d);
+        A visit(SoftLine             d);
+        A visit(Table                d);
+        A visit(Text                 d);
+        A visit(VerticalAlign        d);
+        A visit(VerticalStream       d);
     }
     
     public interface Visitor {
-        void visit(Empty            d);
-        void visit(HorizontalAlign  d);
-        void visit(HorizontalConcat d);
-        void visit(Indent           d);
-        void visit(Table            d);
-        void visit(Text             d);
-        void visit(VerticalAlign    d);
+        void visit(Empty                d);
+        void visit(Fill                 d);
+        void visit(Group                d);
+        void visit(Hole                 d);
+        void visit(HorizontalAlign      d);
+        void visit(HorizontalAlignList  d);
+        void visit(HorizontalConcat     d);
+        void visit(HorizontalConcatList d);
+        void visit(Indent               d);
+        void visit(Join                 d);
+        void visit(Nest                 d);
+        void visit(SoftLine             d);
+        void visit(Table                d);
+        void visit(Text                 d);
+        void visit(VerticalAlign        d);
+        void visit(VerticalStream       d);
     }
     
     /**
@@ -68,9 +100,208 @@ public interface TextDoc {
             return true;
         }
         
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Text filled in lines of at most a width, see {@link Wrapping}. Words
+     * are separated by spaces and tabs, line breaks separate paragraphs.
+     * Rendered with a page width, the fill width is at most the page width
+     * minus the column of the fill, indentation included.
+     */
+    public class Fill implements TextDoc {
+        
+        public final String  text;
+        public final int     width;
+        public final boolean optimal;
+        
+        /**
+         * Fill.
+         * @param text    text
+         * @param width   maximum line width, {@link Integer#MAX_VALUE} for the page width
+         * @param optimal optimal wrapping, greedy if false
+         */
+        public Fill(String text, int width, boolean optimal) {
+            this.text    = text;
+            this.width   = width;
+            this.optimal = optimal;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Group of {@link SoftLine soft lines}. Rendered with a page width, the
+     * soft lines of a group are all flat if the group fits on the rest of
+     * the line, and all broken otherwise. Without a page width groups are
+     * flat.
+     * @see maamissiniva.text.format.rendering.BestFit
+     */
+    public class Group implements TextDoc {
+        
+        public final TextDoc doc;
+        
+        public Group(TextDoc doc) {
+            this.doc = doc;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Named placeholder of a {@link maamissiniva.text.format.rendering.Template template}.
+     * Holes are measured as empty documents, rendering a hole outside of a
+     * template throws an {@link IllegalStateException} that names it.
+     */
+    public class Hole implements TextDoc {
+        
+        public final String name;
+        
+        public Hole(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return "{" + name + "}";
         }
         
     }
@@ -122,9 +353,97 @@ public interface TextDoc {
             v.visit(this);
         }
         
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Horizontal alignment of a list of documents, renders as the left
+     * nested {@link HorizontalAlign} of the documents with a flat tree.
+     * <pre>
+     *    XXX + YYY + ZZZ
+     *    XXX         ZZZ
+     *    =
+     *    XXXYYYZZZ
+     *    XXX   ZZZ
+     * </pre>
+     */
+    public class HorizontalAlignList implements TextDoc {
+        
+        public final List<TextDoc> docs;
+        
+        public HorizontalAlignList(TextDoc... docs) {
+            this(Arrays.asList(docs));
+        }
+        
+        public HorizontalAlignList(List<TextDoc> docs) {
+            this.docs = docs;
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
         }
         
     }
@@ -177,9 +496,98 @@ public interface TextDoc {
             v.visit(this);
         }
         
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Horizontal concatenation of a list of documents, renders as the left
+     * nested {@link HorizontalConcat} of the documents with a flat tree.
+     * <pre>
+     *    XXX + YYY + ZZZ
+     *    XXX   YYY
+     *    =
+     *    XXX
+     *    XXXYYY
+     *       YYYZZZ
+     * </pre>
+     */
+    public class HorizontalConcatList implements TextDoc {
+        
+        public final List<TextDoc> docs;
+        
+        public HorizontalConcatList(TextDoc... docs) {
+            this(Arrays.asList(docs));
+        }
+        
+        public HorizontalConcatList(List<TextDoc> docs) {
+            this.docs = docs;
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
         }
         
     }
@@ -217,9 +625,220 @@ public interface TextDoc {
             v.visit(this);
         }
         
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+    
+    /**
+     * Documents separated by a separator that is not repeated in the tree.
+     * Horizontal joins concatenate the documents and separators:
+     * <pre>
+     *    join(",", [X, Y, Z]) = X,Y,Z
+     * </pre>
+     * Vertical joins align the documents, each but the last one being 
+     * concatenated with the separator:
+     * <pre>
+     *    join(",", [X, Y, Z]) = 
+     *    X,
+     *    Y,
+     *    Z
+     * </pre>
+     */
+    public class Join implements TextDoc {
+        
+        public final List<TextDoc> docs;
+        public final TextDoc       separator;
+        public final boolean       vertical;
+        
+        public Join(List<TextDoc> docs, TextDoc separator, boolean vertical) {
+            this.docs      = docs;
+            this.separator = separator;
+            this.vertical  = vertical;
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+    
+    /**
+     * Nesting of the lines that a broken {@link SoftLine soft line} starts,
+     * they are indented by the nesting relative to the start of the
+     * enclosing concatenation. Unlike {@link Indent}, the first line is not
+     * indented.
+     */
+    public class Nest implements TextDoc {
+        
+        public final int indent;
+        public final TextDoc doc;
+        
+        public Nest(int indent, TextDoc doc) {
+            this.indent = indent;
+            this.doc    = doc;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
+        }
+        
+    }
+    
+    /**
+     * Line break in a concatenation that renders as a flat text when its 
+     * {@link Group group} fits on the line. Once broken, the documents
+     * that follow the soft line in the concatenation are rendered on the
+     * next line, at the start column of the concatenation plus the
+     * {@link Nest nesting}. Soft lines outside of groups are flat.
+     */
+    public class SoftLine implements TextDoc {
+        
+        public final String flat;
+        
+        public SoftLine(String flat) {
+            this.flat = flat;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
         }
         
     }
@@ -255,22 +874,69 @@ public interface TextDoc {
             return rows.isEmpty();
         }
         
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
         }
         
     }
     
     /**
-     * Text fragment. Expected to not contain newlines.
+     * Text fragment. Expected to not contain newlines. The characters are
+     * not copied, they may be a {@link maamissiniva.text.format.rendering.TextSlice slice}
+     * of a larger text and must not change while the document is used.
      */
     public class Text implements TextDoc {
         
-        public final String text;
+        /**
+         * Text, null if the characters are not a string, see {@link #chars}.
+         */
+        public final String       text;
+        
+        /**
+         * Characters of the text, the text itself or a slice of a larger text.
+         */
+        public final CharSequence chars;
+        
+        private int width = -1;
         
         public Text(String text) {
-            this.text = text;
+            this.text  = text;
+            this.chars = text;
+        }
+        
+        public Text(CharSequence chars) {
+            this.text  = chars instanceof String ? (String) chars : null;
+            this.chars = chars;
+        }
+        
+        /**
+         * Display width of the text, computed once.
+         * @return number of columns, see {@link DisplayWidth}
+         */
+        public int width() {
+            if (width < 0)
+                width = DisplayWidth.of(chars);
+            return width;
         }
         
         @Override
@@ -293,9 +959,24 @@ public interface TextDoc {
             return false;
         }
 
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
         }
         
     }
@@ -335,9 +1016,82 @@ public interface TextDoc {
             return false;
         }
         
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        int hash;
+
+        @Override
+        public int hashCode() {
+            return Structure.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TextDoc && Structure.equals(this, (TextDoc) o);
+        }
+        
         @Override
         public String toString() {
-            return render();
+            return StringRenderer.describe(this);
+        }
+        
+    }
+
+    /**
+     * Vertically aligned documents pulled from an iterable as they are
+     * rendered. Streamed to a sink, children are rendered one at a time and
+     * are not kept, lines are not padded to the width of the widest child
+     * (the padding would be trailing padding). Rendered as a block, or
+     * visited, the children are pulled and the node renders as a
+     * {@link VerticalAlign}.
+     * <p>
+     * Iterables of single use sources (iterators, streams) can be iterated
+     * once, so the node can be rendered once. Streams are only equal to
+     * themselves.
+     */
+    public class VerticalStream implements TextDoc {
+        
+        public final Iterable<? extends TextDoc> docs;
+        
+        public VerticalStream(Iterable<? extends TextDoc> docs) {
+            this.docs = docs;
+        }
+        
+        @Override
+        public <A, B> B accept(A a, FVisitor<A, B> v) {
+            return v.visit(a, this);
+        }
+
+        @Override
+        public <A> A accept(PVisitor<A> v) {
+            return v.visit(this);
+        }
+        
+        @Override
+        public void accept(Visitor v) {
+            v.visit(this);
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+        
+        Measure measure;
+
+        @Override
+        public Measure measure() {
+            return Measure.of(this);
+        }
+        
+        @Override
+        public String toString() {
+            return StringRenderer.describe(this);
         }
         
     }
@@ -348,6 +1102,15 @@ public interface TextDoc {
 
     void accept(Visitor v);
     
+    /**
+     * Width, height and last line width of the rendered document, computed
+     * without rendering and cached by the documents that have children.
+     * @return measure
+     * @throws IllegalArgumentException if the document contains a
+     *         vertical stream, see {@link Measure#measurable(TextDoc)}
+     */
+    Measure measure();
+    
     /**
      * Is this an instance of {@link Empty} ?
      * @return true is this is an instanceof {@link Empty}, false otherwise
@@ -385,10 +1148,24 @@ public interface TextDoc {
     }
 
     /**
-     * Println(render(this)).
+     * Render with a page width, see {@link StringRenderer#withWidth(int)}.
+     * @param width page width
+     * @return      text
+     */
+    default String render(int width) {
+        return new StringRenderer().withWidth(width).text(this);
+    }
+
+    /**
+     * Println(render(this)), lines are streamed to System.out.
      */
     default void printRender() {
-        System.out.println(render());
+        try {
+            StringRenderer.render(this, (Appendable) System.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println();
     }
    
 }
@@ -4,10 +4,15 @@ import static maamissiniva.util.Iterables.ar;
 import static maamissiniva.util.Iterables.asList;
 import static maamissiniva.util.Iterables.it;
 import static maamissiniva.util.Iterables.singleton;
-import static maamissiniva.util.Iterables.take;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
+import maamissiniva.text.format.rendering.TextSlice;
 import maamissiniva.util.MaamIterable;
 
 /**
@@ -54,7 +59,7 @@ public class TextDocShortcuts {
      * @return   document
      */
     public static TextDoc hcat(MaamIterable<TextDoc> ds) {
-        return ds.foldL(empty, (x,y) -> new TextDoc.HorizontalConcat(x, y));
+        return hcat(ds.asList());
     }
 
     public static TextDoc hcat(TextDoc doc, String... ss) {
@@ -65,8 +70,17 @@ public class TextDocShortcuts {
         return hcat(it(ds));
     }
 
+    /**
+     * Horizontal concatenation of documents as a single n-ary node.
+     * @param ds documents to concatenate
+     * @return   document
+     */
     public static TextDoc hcat(List<TextDoc> ds) {
-        return hcat(it(ds));
+        switch (ds.size()) {
+        case 0  : return empty;
+        case 1  : return ds.get(0);
+        default : return new TextDoc.HorizontalConcatList(copy(ds));
+        }
     }
 
     public static TextDoc hcat(String... ds) {
@@ -77,13 +91,112 @@ public class TextDocShortcuts {
         return hcat(ar(ds));
     }
     
+    /**
+     * Template placeholder.
+     * @param name hole name
+     * @return     document
+     * @see maamissiniva.text.format.rendering.Template
+     */
+    public static TextDoc hole(String name) {
+        return new TextDoc.Hole(name);
+    }
+    
     public static TextDoc indent(int indent, TextDoc doc) {
         return new TextDoc.Indent(indent, doc);
     }
+
+    /**
+     * Group whose soft lines are broken together if it does not fit in the
+     * page width.
+     * @param doc document
+     * @return    document
+     * @see maamissiniva.text.format.rendering.BestFit
+     */
+    public static TextDoc group(TextDoc doc) {
+        return new TextDoc.Group(doc);
+    }
+
+    /**
+     * Nesting of the lines started by broken soft lines.
+     * @param indent indentation
+     * @param doc    document
+     * @return       document
+     */
+    public static TextDoc nest(int indent, TextDoc doc) {
+        return new TextDoc.Nest(indent, doc);
+    }
+
+    /**
+     * Soft line that renders as a space when flat.
+     * @return document
+     */
+    public static TextDoc line() {
+        return new TextDoc.SoftLine(" ");
+    }
+
+    /**
+     * Soft line that renders as nothing when flat.
+     * @return document
+     */
+    public static TextDoc softline() {
+        return new TextDoc.SoftLine("");
+    }
+
+    /**
+     * Text filled in the page width, greedy wrapping.
+     * @param text text
+     * @return     document
+     */
+    public static TextDoc fill(String text) {
+        return fill(Integer.MAX_VALUE, text);
+    }
+
+    /**
+     * Text filled in lines of at most a width, greedy wrapping.
+     * @param width maximum line width
+     * @param text  text
+     * @return      document
+     */
+    public static TextDoc fill(int width, String text) {
+        return new TextDoc.Fill(text, width, false);
+    }
+
+    /**
+     * Text filled in the page width, optimal wrapping.
+     * @param text text
+     * @return     document
+     */
+    public static TextDoc fillOptimal(String text) {
+        return fillOptimal(Integer.MAX_VALUE, text);
+    }
+
+    /**
+     * Text filled in lines of at most a width, optimal wrapping that evens
+     * the line widths out.
+     * @param width maximum line width
+     * @param text  text
+     * @return      document
+     */
+    public static TextDoc fillOptimal(int width, String text) {
+        return new TextDoc.Fill(text, width, true);
+    }
     
     
     public static TextDoc hali(MaamIterable<TextDoc> ds) {
-        return ds.foldL(empty, (x,y) -> new TextDoc.HorizontalAlign(x, y));
+        return hali(ds.asList());
+    }
+    
+    /**
+     * Horizontal alignment of documents as a single n-ary node.
+     * @param ds documents to align
+     * @return   document
+     */
+    public static TextDoc hali(List<TextDoc> ds) {
+        switch (ds.size()) {
+        case 0  : return empty;
+        case 1  : return ds.get(0);
+        default : return new TextDoc.HorizontalAlignList(copy(ds));
+        }
     }
     
     public static TextDoc hali(TextDoc... ds) {
@@ -94,12 +207,37 @@ public class TextDocShortcuts {
     
     
     /**
-     * Break string into lines if needed and add them as a vcat.
-     * @param s string
+     * Break text into lines if needed and add them as a vcat. Lines are
+     * split at line breaks, see {@link TextSlice#lines(CharSequence)}.
+     * @param s text
      * @return  document
      */
     public static TextDoc txt(String s) {
-        return vcat(ar(s.split("\\R")).map(l -> new TextDoc.Text(l)));
+        return txt((CharSequence) s);
+    }
+
+    /**
+     * Break characters into lines if needed and add them as a vcat. Lines
+     * are split at line breaks, see {@link TextSlice#lines(CharSequence)},
+     * and are not copied.
+     * @param s characters
+     * @return  document
+     */
+    public static TextDoc txt(CharSequence s) {
+        return vcat(it(TextSlice.lines(s)).map(l -> new TextDoc.Text(l)));
+    }
+
+    /**
+     * Range of a larger text, e.g. a {@link java.nio.CharBuffer} of a mapped
+     * file, broken into lines. No character is copied until the document is
+     * rendered.
+     * @param source text, must not change while the document is used
+     * @param start  index of the first character
+     * @param end    index after the last character
+     * @return       document
+     */
+    public static TextDoc txt(CharSequence source, int start, int end) {
+        return txt(new TextSlice(source, start, end));
     }
 
     public static TextDoc txt(String... ss) {
@@ -108,7 +246,7 @@ public class TextDocShortcuts {
 
     
     public static TextDoc vcat(List<TextDoc> ds) {
-        return new TextDoc.VerticalAlign(ds);
+        return new TextDoc.VerticalAlign(copy(ds));
     }
     
     public static TextDoc vcat(Iterable<TextDoc> ds) {
@@ -118,10 +256,83 @@ public class TextDocShortcuts {
     public static TextDoc vcat(TextDoc... ds) {
         return new TextDoc.VerticalAlign(ar(ds).asList());
     }   
+
+    /**
+     * Vertical alignment of documents that are pulled as the document is
+     * streamed, see {@link TextDoc.VerticalStream}.
+     * @param ds documents
+     * @return   document
+     */
+    public static TextDoc vstream(Iterable<? extends TextDoc> ds) {
+        return new TextDoc.VerticalStream(ds);
+    }
+
+    /**
+     * Vertical alignment of documents pulled from an iterator, the document
+     * can be rendered once.
+     * @param ds documents
+     * @return   document
+     */
+    public static TextDoc vstream(Iterator<? extends TextDoc> ds) {
+        return new TextDoc.VerticalStream(once(ds));
+    }
+
+    /**
+     * Vertical alignment of documents pulled from a stream, the document
+     * can be rendered once.
+     * @param ds documents
+     * @return   document
+     */
+    public static TextDoc vstream(Stream<? extends TextDoc> ds) {
+        return new TextDoc.VerticalStream(once(ds.iterator()));
+    }
+
+    /**
+     * Copy of the documents of a node: nodes cache their measure and hash,
+     * so they do not share a list the caller can change.
+     * @param ds documents
+     * @return   unmodifiable copy
+     */
+    private static List<TextDoc> copy(List<TextDoc> ds) {
+        return Collections.unmodifiableList(new ArrayList<>(ds));
+    }
+
+    private static <A> Iterable<A> once(Iterator<A> i) {
+        AtomicBoolean used = new AtomicBoolean();
+        return () -> {
+            if (used.getAndSet(true))
+                throw new IllegalStateException("documents already streamed");
+            return i;
+        };
+    }
     
+    /**
+     * Factory of documents that are shared when they are structurally equal.
+     * @return new interner
+     */
+    public static Interner interner() {
+        return new Interner();
+    }
+
+    /**
+     * Vertical alignment of documents, each but the last one being followed
+     * by a separator.
+     * @param docs  documents
+     * @param inter separator
+     * @return      document
+     */
     public static TextDoc vcatIntercalate(List<TextDoc> docs, TextDoc inter) {
-        return take(docs, docs.size() - 1)
-            .foldR(docs.get(docs.size()-1), (x,y) -> vcat(hcat(x, inter), y));
+        return new TextDoc.Join(copy(docs), inter, true);
+    }
+
+    /**
+     * Horizontal concatenation of documents separated by a separator.
+     * @param docs  documents
+     * @param inter separator
+     * @return      document
+     */
+    public static TextDoc hcatIntercalate(List<TextDoc> docs, TextDoc inter) {
+        return new TextDoc.Join(copy(docs), inter, false);
     }
     
 }
@@ -0,0 +1,632 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+import maamissiniva.text.format.Measure;
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Fits {@link Group groups} in a page width. The result is a document
+ * without groups, soft lines and nestings that renders as the best layout.
+ * <p>
+ * A flow is a concatenation, through groups and nestings, of documents and
+ * soft lines. A flow is laid out in two linear passes: the flat width of
+ * each group and the width up to the next soft line that follows it are
+ * computed from the cached {@link TextDoc#measure() measures}, then a group
+ * is flat if it fits on the line with the documents that follow it up to
+ * the next soft line, broken otherwise. The soft lines of a broken group
+ * split the flow in rows that are vertically aligned at the start column
+ * of the flow, indented by the nesting. Documents of a flow are placed
+ * at their column so that the flows they contain are fitted in the
+ * remaining width.
+ * <p>
+ * Documents of {@link VerticalStream vertical streams} are fitted as they
+ * are pulled. Documents that contain a stream are not
+ * {@link Measure#measurable(TextDoc) measured}: their width is unknown and
+ * breaks the groups they are in.
+ */
+public class BestFit {
+
+    private static final int ITEM   = 0;
+    private static final int LINE   = 1;
+    private static final int OPEN   = 2;
+    private static final int CLOSE  = 3;
+    private static final int NEST   = 4;
+    private static final int UNNEST = 5;
+
+    /**
+     * Width of the documents that contain a vertical stream, columns are
+     * bounded by it.
+     */
+    private static final int UNKNOWN = Integer.MAX_VALUE / 2;
+
+    /**
+     * Element of a flattened flow.
+     */
+    private static class Token {
+
+        final int     kind;
+        final TextDoc doc;
+        final int     indent;
+
+        Token(int kind, TextDoc doc, int indent) {
+            this.kind   = kind;
+            this.doc    = doc;
+            this.indent = indent;
+        }
+
+    }
+
+    /**
+     * Placement of the children of a document at their columns.
+     */
+    private abstract static class Placement {
+
+        /**
+         * Column of the child returned by {@link #next()}.
+         */
+        int column;
+
+        /**
+         * Next child to place.
+         * @return child, null once the children are placed
+         */
+        abstract TextDoc next();
+
+        /**
+         * Child placed.
+         * @param x placed child
+         */
+        abstract void placed(TextDoc x);
+
+        /**
+         * Placed document.
+         * @return document
+         */
+        abstract TextDoc result();
+
+    }
+
+    /**
+     * Placement of a flow.
+     */
+    private class Flow extends Placement {
+
+        final TextDoc        doc;
+        final int            start;
+        final List<Token>    tokens;
+        // Flat width from the start of the flow, flat width up to the next
+        // soft line and index of the closing token of a group
+        final long[]         flat;
+        final long[]         next;
+        final int[]          close;
+        final List<TextDoc>  rows    = new ArrayList<>();
+        List<TextDoc>        row     = new ArrayList<>();
+        final Deque<Boolean> broken  = new ArrayDeque<>();
+        int                  nest;
+        int                  rowNest;
+        long                 col;
+        int                  i;
+        boolean              changed;
+
+        Flow(TextDoc doc, int start) {
+            this.doc    = doc;
+            this.start  = start;
+            this.tokens = tokens(doc);
+            this.col    = start;
+            int n = tokens.size();
+            flat  = new long[n + 1];
+            next  = new long[n];
+            close = new int[n];
+            Deque<Integer> opens = new ArrayDeque<>();
+            for (int k = 0; k < n; k++) {
+                Token t = tokens.get(k);
+                flat[k + 1] = flat[k] + flatWidth(t);
+                if (t.kind == OPEN)
+                    opens.push(k);
+                else if (t.kind == CLOSE)
+                    close[opens.pop()] = k;
+                else if (t.kind != ITEM)
+                    changed = true;
+            }
+            long run = 0;
+            for (int k = n - 1; k >= 0; k--) {
+                Token t = tokens.get(k);
+                next[k] = run;
+                run = t.kind == LINE ? 0 : run + flatWidth(t);
+            }
+        }
+
+        @Override
+        TextDoc next() {
+            while (i < tokens.size()) {
+                Token t = tokens.get(i++);
+                switch (t.kind) {
+                case ITEM :
+                    column = (int) Math.min(col, UNKNOWN);
+                    return t.doc;
+                case LINE :
+                    if (broken.isEmpty() || ! broken.peek()) {
+                        SoftLine l = (SoftLine) t.doc;
+                        if (! l.flat.isEmpty())
+                            row.add(new Text(l.flat));
+                        col += DisplayWidth.of(l.flat);
+                    } else {
+                        rows.add(row(rowNest, row));
+                        row     = new ArrayList<>();
+                        rowNest = nest;
+                        col     = start + Math.max(0, nest);
+                    }
+                    break;
+                case OPEN :
+                    if (! broken.isEmpty() && ! broken.peek())
+                        broken.push(false);
+                    else
+                        broken.push(col + flat[close[i - 1]] - flat[i - 1] + next[close[i - 1]] > width);
+                    break;
+                case CLOSE :
+                    broken.pop();
+                    break;
+                case NEST :
+                    nest += t.indent;
+                    break;
+                default :
+                    nest -= t.indent;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void placed(TextDoc x) {
+            changed |= x != tokens.get(i - 1).doc;
+            row.add(x);
+            col += widthOf(x);
+        }
+
+        @Override
+        TextDoc result() {
+            if (! changed)
+                return doc;
+            if (rows.isEmpty())
+                return hcat(row);
+            rows.add(row(rowNest, row));
+            return new VerticalAlign(rows);
+        }
+
+    }
+
+    /**
+     * Placement of the children of a block.
+     */
+    private static class Children extends Placement {
+
+        final TextDoc                          doc;
+        final List<TextDoc>                    children;
+        final int                              start;
+        // Offsets of the children from the block column, children are
+        // side by side if null
+        final int[]                            offsets;
+        final Function<List<TextDoc>, TextDoc> rebuild;
+        final List<TextDoc>                    placed;
+        int                                    width;
+        boolean                                changed;
+
+        Children(TextDoc doc, List<TextDoc> children, int start, int[] offsets, Function<List<TextDoc>, TextDoc> rebuild) {
+            this.doc      = doc;
+            this.children = children;
+            this.start    = start;
+            this.offsets  = offsets;
+            this.rebuild  = rebuild;
+            this.placed   = new ArrayList<>(children.size());
+        }
+
+        @Override
+        TextDoc next() {
+            int k = placed.size();
+            if (k == children.size())
+                return null;
+            column = add(start, offsets == null ? width : offsets[k]);
+            return children.get(k);
+        }
+
+        @Override
+        void placed(TextDoc x) {
+            changed |= x != children.get(placed.size());
+            placed.add(x);
+            if (offsets == null)
+                width = add(width, widthOf(x));
+        }
+
+        @Override
+        TextDoc result() {
+            return changed ? rebuild.apply(placed) : doc;
+        }
+
+    }
+
+    /**
+     * Placement of a document without children to place.
+     */
+    private static class Placed extends Placement {
+
+        final TextDoc doc;
+
+        Placed(TextDoc doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        TextDoc next() {
+            return null;
+        }
+
+        @Override
+        void placed(TextDoc x) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        TextDoc result() {
+            return doc;
+        }
+
+    }
+
+    private final int          width;
+    // Cancellation of an asynchronous render, null if the fit is not
+    // cancelled
+    private final Cancellation cancellation;
+
+    private BestFit(int width, Cancellation cancellation) {
+        this.width        = width;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Fit a document in a page width.
+     * @param doc   document
+     * @param width page width
+     * @return      document without groups, soft lines and nestings
+     */
+    public static TextDoc fit(TextDoc doc, int width) {
+        return fit(doc, width, null);
+    }
+
+    /**
+     * Fit a document in a page width, checking a cancellation.
+     * @param doc          document
+     * @param width        page width
+     * @param cancellation cancellation, null for none
+     * @return             document without groups, soft lines and nestings
+     */
+    static TextDoc fit(TextDoc doc, int width, Cancellation cancellation) {
+        return new BestFit(width, cancellation).fitAt(doc, 0);
+    }
+
+    /**
+     * Fit a document whose lines start at a column, documents without
+     * layout nodes or vertical streams are kept.
+     * @param doc    document
+     * @param column column
+     * @return       fitted document
+     */
+    private TextDoc fitAt(TextDoc doc, int column) {
+        if (! DocFold.fold(doc, DocFold.unstreamed, hasLayout, null, cancellation == null ? null : cancellation.trace()) && Measure.measurable(doc))
+            return doc;
+        return place(doc, column);
+    }
+
+    private void check() {
+        if (cancellation != null)
+            cancellation.check();
+    }
+
+    private static boolean isLeaf(TextDoc d) {
+        return d instanceof Text || d instanceof Empty || d instanceof Hole;
+    }
+
+    /**
+     * Fit a document whose lines start at a column. Placements are pushed
+     * on an explicit stack, sub documents that are not changed by their
+     * placement are kept.
+     * @param doc    document
+     * @param column column
+     * @return       fitted document
+     */
+    private TextDoc place(TextDoc doc, int column) {
+        Placement p = placement(doc, column);
+        if (p == null)
+            return doc;
+        Deque<Placement> stack = new ArrayDeque<>();
+        stack.push(p);
+        while (true) {
+            check();
+            Placement f = stack.peek();
+            TextDoc   c = f.next();
+            if (c == null) {
+                stack.pop();
+                TextDoc r = f.result();
+                if (stack.isEmpty())
+                    return r;
+                stack.peek().placed(r);
+            } else {
+                Placement g = placement(c, f.column);
+                if (g == null)
+                    f.placed(c);
+                else
+                    stack.push(g);
+            }
+        }
+    }
+
+    /**
+     * Placement of a document.
+     * @param d      document
+     * @param column column
+     * @return       placement, null if the document is placed as is
+     */
+    private Placement placement(TextDoc d, int column) {
+        if (isLeaf(d))
+            return null;
+        return d.accept(column, placements);
+    }
+
+    private static TextDoc row(int nest, List<TextDoc> row) {
+        // A broken line renders a line even if nothing precedes it
+        TextDoc d = hcat(row);
+        if (d.isEmpty())
+            return new Text("");
+        return nest > 0 ? new Indent(nest, d) : d;
+    }
+
+    /**
+     * Width of a document.
+     * @param d document
+     * @return  width, {@link #UNKNOWN} if the document contains a vertical
+     *          stream
+     */
+    private static int widthOf(TextDoc d) {
+        return Measure.measurable(d) ? d.measure().width : UNKNOWN;
+    }
+
+    /**
+     * Sum of widths bounded by {@link #UNKNOWN}.
+     */
+    private static int add(int a, int b) {
+        return (int) Math.min(UNKNOWN, (long) a + b);
+    }
+
+    private static long flatWidth(Token t) {
+        switch (t.kind) {
+        case ITEM : return widthOf(t.doc);
+        case LINE : return DisplayWidth.of(((SoftLine) t.doc).flat);
+        default   : return 0;
+        }
+    }
+
+    /**
+     * Flatten a flow, documents that are not flow nodes are items.
+     * @param d flow
+     * @return  tokens
+     */
+    private List<Token> tokens(TextDoc d) {
+        List<Token>   tokens = new ArrayList<>();
+        Deque<Object> stack  = new ArrayDeque<>();
+        stack.push(d);
+        while (! stack.isEmpty()) {
+            check();
+            Object o = stack.pop();
+            if (o instanceof Token) {
+                tokens.add((Token) o);
+            } else if (o instanceof HorizontalConcat) {
+                stack.push(((HorizontalConcat) o).right);
+                stack.push(((HorizontalConcat) o).left);
+            } else if (o instanceof HorizontalConcatList) {
+                List<TextDoc> docs = ((HorizontalConcatList) o).docs;
+                for (int i = docs.size() - 1; i >= 0; i--)
+                    stack.push(docs.get(i));
+            } else if (o instanceof Group) {
+                tokens.add(new Token(OPEN, null, 0));
+                stack.push(new Token(CLOSE, null, 0));
+                stack.push(((Group) o).doc);
+            } else if (o instanceof Nest) {
+                Nest x = (Nest) o;
+                tokens.add(new Token(NEST, null, x.indent));
+                stack.push(new Token(UNNEST, null, x.indent));
+                stack.push(x.doc);
+            } else if (o instanceof SoftLine) {
+                tokens.add(new Token(LINE, (SoftLine) o, 0));
+            } else if (! (o instanceof Empty)) {
+                tokens.add(new Token(ITEM, (TextDoc) o, 0));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Placements of the blocks, the visitor argument is the column.
+     */
+    private final TextDoc.FVisitor<Integer, Placement> placements = new TextDoc.FVisitor<Integer, Placement>() {
+        @Override public Placement visit(Integer a, Empty d) {
+            return new Placed(d);
+        }
+        @Override public Placement visit(Integer a, Fill d) {
+            // Fills are wrapped in the width left by their column, fills
+            // that follow a document of unknown width are kept
+            if (a >= UNKNOWN)
+                return new Placed(d);
+            int w = Math.min(d.width, Math.max(1, width - a));
+            return new Placed(w == d.width ? d : new Fill(d.text, w, d.optimal));
+        }
+        @Override public Placement visit(Integer a, Group d) {
+            return new Flow(d, a);
+        }
+        @Override public Placement visit(Integer a, Hole d) {
+            return new Placed(d);
+        }
+        @Override public Placement visit(Integer a, HorizontalAlign d) {
+            return new Children(d, Arrays.asList(d.left, d.right), a, null, c -> new HorizontalAlign(c.get(0), c.get(1)));
+        }
+        @Override public Placement visit(Integer a, HorizontalAlignList d) {
+            return new Children(d, d.docs, a, null, HorizontalAlignList::new);
+        }
+        @Override public Placement visit(Integer a, HorizontalConcat d) {
+            return new Flow(d, a);
+        }
+        @Override public Placement visit(Integer a, HorizontalConcatList d) {
+            return new Flow(d, a);
+        }
+        @Override public Placement visit(Integer a, Indent d) {
+            return new Children(d, Collections.singletonList(d.doc), a, new int[] { Math.max(0, d.indent) }, c -> new Indent(d.indent, c.get(0)));
+        }
+        @Override public Placement visit(Integer a, Join d) {
+            // Joins are placed as the concatenations they render as
+            List<TextDoc> docs = new ArrayList<>(d.docs.size());
+            for (int i = 0; i < d.docs.size(); i++) {
+                TextDoc x = d.docs.get(i);
+                if (d.vertical)
+                    docs.add(i == d.docs.size() - 1 ? x : new HorizontalConcat(x, d.separator));
+                else
+                    docs.add(i == 0 ? x : new HorizontalConcat(d.separator, x));
+            }
+            if (! d.vertical)
+                return new Flow(new HorizontalConcatList(docs), a);
+            return new Children(d, docs, a, new int[docs.size()], VerticalAlign::new);
+        }
+        @Override public Placement visit(Integer a, Nest d) {
+            return new Flow(d, a);
+        }
+        @Override public Placement visit(Integer a, SoftLine d) {
+            return new Flow(d, a);
+        }
+        @Override public Placement visit(Integer a, Table d) {
+            // Columns start at the offsets of the flat layout
+            int           columns = DocFold.columns(d);
+            int[]         widths  = new int[columns + 1];
+            List<TextDoc> cells   = new ArrayList<>();
+            for (List<TextDoc> r : d.rows) {
+                for (int k = 0; k < r.size(); k++)
+                    widths[k + 1] = Math.max(widths[k + 1], widthOf(r.get(k)));
+                cells.addAll(r);
+            }
+            for (int k = 1; k <= columns; k++)
+                widths[k] = add(widths[k], widths[k - 1]);
+            int[] offsets = new int[cells.size()];
+            int   i       = 0;
+            for (List<TextDoc> r : d.rows)
+                for (int k = 0; k < r.size(); k++)
+                    offsets[i++] = widths[k];
+            return new Children(d, cells, a, offsets, c -> {
+                List<List<TextDoc>> rows = new ArrayList<>(d.rows.size());
+                int                 from = 0;
+                for (List<TextDoc> r : d.rows) {
+                    rows.add(new ArrayList<>(c.subList(from, from + r.size())));
+                    from += r.size();
+                }
+                return new Table(rows);
+            });
+        }
+        @Override public Placement visit(Integer a, Text d) {
+            return new Placed(d);
+        }
+        @Override public Placement visit(Integer a, VerticalAlign d) {
+            return new Children(d, d.docs, a, new int[d.docs.size()], VerticalAlign::new);
+        }
+        @Override public Placement visit(Integer a, VerticalStream d) {
+            // Streamed documents are not kept by a memo
+            return new Placed(new VerticalStream(() -> {
+                Iterator<? extends TextDoc> docs = d.docs.iterator();
+                return new Iterator<TextDoc>() {
+                    @Override public boolean hasNext() {
+                        return docs.hasNext();
+                    }
+                    @Override public TextDoc next() {
+                        return new BestFit(width, cancellation).fitAt(docs.next(), a);
+                    }
+                };
+            }));
+        }
+    };
+
+    /**
+     * Does a document have groups, soft lines or nestings, the documents of
+     * vertical streams are not pulled and are checked as they are fitted.
+     */
+    private static final TextDoc.FVisitor<List<Boolean>, Boolean> hasLayout = new TextDoc.FVisitor<List<Boolean>, Boolean>() {
+        @Override public Boolean visit(List<Boolean> c, Empty d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, Fill d) {
+            return true;
+        }
+        @Override public Boolean visit(List<Boolean> c, Group d) {
+            return true;
+        }
+        @Override public Boolean visit(List<Boolean> c, Hole d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalAlign d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalAlignList d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalConcat d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalConcatList d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Indent d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Join d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Nest d) {
+            return true;
+        }
+        @Override public Boolean visit(List<Boolean> c, SoftLine d) {
+            return true;
+        }
+        @Override public Boolean visit(List<Boolean> c, Table d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Text d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, VerticalAlign d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, VerticalStream d) {
+            return false;
+        }
+    };
+
+}
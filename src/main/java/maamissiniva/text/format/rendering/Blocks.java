@@ -0,0 +1,263 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.rendering.TextLine.tl;
+import static maamissiniva.text.format.rendering.TextLine.tlString;
+import static maamissiniva.util.Iterables.foldL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block combinators, the layout rules of {@link maamissiniva.text.format.TextDoc} nodes.
+ */
+public class Blocks {
+
+    /**
+     * Single line block.
+     * @param text line text
+     * @return     block
+     */
+    public static TextBlock text(String text) {
+        return new TextBlock(Arrays.asList(tlString(text)));
+    }
+
+    /**
+     * Single line block of a text whose width is known.
+     * @param text  line text, not copied
+     * @param width text width
+     * @return      block
+     */
+    public static TextBlock text(CharSequence text, int width) {
+        return new TextBlock(Arrays.asList(tlString(text, width)));
+    }
+
+    /**
+     * Block of the lines of a wrapped text.
+     * @param w wrapping
+     * @return  block
+     */
+    public static TextBlock fill(Wrapping w) {
+        List<TextLine> lines = new ArrayList<>(w.height());
+        for (int i = 0; i < w.height(); i++)
+            lines.add(tlString(w.line(i), w.width(i)));
+        return new TextBlock(lines);
+    }
+
+    /**
+     * Horizontal alignment, lines are concatenated side by side.
+     * @param left  left block
+     * @param right right block
+     * @return      block
+     */
+    public static TextBlock hali(TextBlock left, TextBlock right) {
+        if (left.height == 0)
+            return right;
+        if (right.height == 0)
+            return left;
+        int lWidth = left.width;
+        int rWidth = right.width;
+        int height = Math.max(left.height, right.height);
+        List<TextLine> lines = new ArrayList<>(height);
+        for (int i=0; i<height; i++) {
+            if (i >= left.lines.size())
+                lines.add(tl(lWidth, right.lines.get(i)));
+            else if (i >= right.lines.size())
+                lines.add(left.lines.get(i));
+            else
+                lines.add(tl(left.lines.get(i).padTo(lWidth), right.lines.get(i)));
+        }
+        return new TextBlock(lines, lWidth + rWidth);
+    }
+
+    /**
+     * Horizontal alignment of blocks, same as the left fold of 
+     * {@link #hali(TextBlock, TextBlock)}.
+     * @param bs blocks
+     * @return   block
+     */
+    public static TextBlock hali(List<TextBlock> bs) {
+        List<TextBlock> nonEmpty = new ArrayList<>(bs.size());
+        int             height   = 0;
+        for (TextBlock b : bs) {
+            if (b.height > 0) {
+                nonEmpty.add(b);
+                height = Math.max(height, b.height);
+            }
+        }
+        if (nonEmpty.size() < 2)
+            return nonEmpty.isEmpty() ? TextBlock.empty : nonEmpty.get(0);
+        int[] widths = new int[nonEmpty.size()];
+        int   width  = 0;
+        for (int c = 0; c < widths.length; c++) {
+            widths[c] = nonEmpty.get(c).width;
+            width    += widths[c];
+        }
+        List<TextLine>   lines = new ArrayList<>(height);
+        TextLine.Builder lb    = new TextLine.Builder();
+        for (int l = 0; l < height; l++)
+            lines.add(row(lb, widths, nonEmpty, l));
+        return new TextBlock(lines, width);
+    }
+
+    /**
+     * Horizontal concatenation, the right block hangs after the last line
+     * of the left block.
+     * @param left  left block
+     * @param right right block
+     * @return      block
+     */
+    public static TextBlock hcat(TextBlock left, TextBlock right) {
+        if (left.height == 0)
+            return right;
+        if (right.height == 0)
+            return left;
+        int lHeight = left.height;
+        int rHeight = right.height;
+        int lWidth  = left.width;
+        int rWidth  = right.width;
+        int width   = lWidth + rWidth;
+        List<TextLine> lines = new ArrayList<>(lHeight + rHeight - 1);
+        for (int i = 0; i < lHeight - 1; i++) 
+            lines.add(left.lines.get(i)); 
+        lines.add(tl(left.lines.get(lHeight - 1).padTo(lWidth), right.lines.get(0)));
+        for (int i = 1; i < rHeight; i++) 
+            lines.add(tl(lWidth, right.lines.get(i)));
+        return new TextBlock(lines, width);
+    }
+
+    /**
+     * Horizontal concatenation of blocks, same as the left fold of 
+     * {@link #hcat(TextBlock, TextBlock)}. Lines are built once.
+     * @param bs blocks
+     * @return   block
+     */
+    public static TextBlock hcat(List<TextBlock> bs) {
+        TextBlock single = null;
+        int       count  = 0;
+        int       width  = 0;
+        int       height = 1;
+        for (TextBlock b : bs) {
+            if (b.height > 0) {
+                single  = b;
+                count  += 1;
+                width  += b.width;
+                height += b.height - 1;
+            }
+        }
+        if (count < 2)
+            return count == 0 ? TextBlock.empty : single;
+        List<TextLine>   lines  = new ArrayList<>(height);
+        TextLine.Builder lb     = new TextLine.Builder();
+        int              offset = 0;
+        for (TextBlock b : bs) {
+            for (int i = 0; i < b.height; i++) {
+                if (i > 0) {
+                    lines.add(lb.build());
+                    lb.pad(offset);
+                }
+                lb.add(b.lines.get(i), b.width);
+            }
+            offset += b.width;
+        }
+        lines.add(lb.build());
+        return new TextBlock(lines, width);
+    }
+
+    /**
+     * Blocks separated by a separator block.
+     * @param separator separator
+     * @param bs        blocks
+     * @param vertical  true if the blocks are vertically aligned, each but 
+     *                  the last one being concatenated with the separator,
+     *                  false if the blocks and separators are concatenated
+     * @return          block
+     */
+    public static TextBlock join(TextBlock separator, List<TextBlock> bs, boolean vertical) {
+        List<TextBlock> parts = new ArrayList<>(vertical ? bs.size() : 2 * bs.size());
+        for (int i = 0; i < bs.size(); i++) {
+            boolean last = i == bs.size() - 1;
+            if (! vertical) {
+                parts.add(bs.get(i));
+                if (! last)
+                    parts.add(separator);
+            } else if (last) {
+                parts.add(bs.get(i));
+            } else {
+                parts.add(hcat(bs.get(i), separator));
+            }
+        }
+        return vertical ? vali(parts) : hcat(parts);
+    }
+
+    /**
+     * Indented block.
+     * @param indent indentation
+     * @param b      block
+     * @return       block
+     */
+    public static TextBlock indent(int indent, TextBlock b) {
+        return b.shift(indent);
+    }
+
+    /**
+     * Table, cells are column aligned.
+     * @param columns number of columns
+     * @param cells   cell blocks, row by row, each row has the given number of columns
+     * @return        block
+     */
+    public static TextBlock table(int columns, List<TextBlock> cells) {
+        int   rows    = columns == 0 ? 0 : cells.size() / columns;
+        int[] widths  = new int[columns];
+        int[] heights = new int[rows];
+        int   height  = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                TextBlock b = cells.get(r * columns + c);
+                widths[c]  = Math.max(widths[c], b.width);
+                heights[r] = Math.max(heights[r], b.height);
+            }
+            height += heights[r];
+        }
+        int width = 0;
+        for (int w : widths)
+            width += w;
+        List<TextLine>   lines = new ArrayList<>(height);
+        TextLine.Builder lb    = new TextLine.Builder();
+        for (int r = 0; r < rows; r++) 
+            for (int l = 0; l < heights[r]; l++) 
+                lines.add(row(lb, widths, cells.subList(r * columns, (r + 1) * columns), l));
+        return new TextBlock(lines, height == 0 ? 0 : width);
+    }
+
+    /**
+     * Line of a table row, without trailing padding.
+     * @param lb     line builder
+     * @param widths column widths, cells past the last column are not padded
+     * @param cells  row cells
+     * @param l      line index in the row
+     * @return       line
+     */
+    public static TextLine row(TextLine.Builder lb, int[] widths, List<TextBlock> cells, int l) {
+        for (int c = 0; c < cells.size(); c++) {
+            TextBlock b     = cells.get(c);
+            int       width = c < widths.length ? widths[c] : 0;
+            if (l < b.height)
+                lb.add(b.lines.get(l), width);
+            else
+                lb.pad(width);
+        }
+        return lb.build();
+    }
+
+    /**
+     * Vertical alignment, the block is as wide as the widest block, lines
+     * are not padded.
+     * @param bs blocks
+     * @return   block
+     */
+    public static TextBlock vali(List<TextBlock> bs) {
+        return TextBlock.concat(bs, foldL(bs, 0, (x,y) -> Math.max(x, y.width)));
+    }
+
+}
@@ -0,0 +1,154 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import maamissiniva.text.format.TextDoc;
+
+/**
+ * Cooperative cancellation of an asynchronous render. The render checks
+ * the cancellation every {@link #interval} visited nodes and emitted lines
+ * and stops by throwing a {@link CancellationException} once its future is
+ * done (cancelled) or its deadline is passed. A timer completes the future
+ * of a render with a {@link TimeoutException} at its deadline, whether the
+ * render runs or waits for a thread.
+ * @see StringRenderer#renderAsync(TextDoc, java.util.concurrent.Executor)
+ */
+class Cancellation implements DocFold.Trace<TextBlock> {
+
+    /**
+     * Number of checks between two effective checks.
+     */
+    static final int interval = 1024;
+
+    /**
+     * Timer of the deadlines, its daemon thread is started by the first
+     * render with a deadline.
+     */
+    private static class Timer {
+
+        static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "render-deadline");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static {
+            timer.setRemoveOnCancelPolicy(true);
+        }
+
+    }
+
+    private final CompletableFuture<?> future;
+    private final boolean              timed;
+    private final long                 deadline;
+    private int                        count;
+
+    /**
+     * Cancellation of a render.
+     * @param future   future of the render result
+     * @param timed    does the render have a deadline
+     * @param deadline {@link System#nanoTime()} of the deadline
+     */
+    Cancellation(CompletableFuture<?> future, boolean timed, long deadline) {
+        this.future   = future;
+        this.timed    = timed;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Complete the future with a {@link TimeoutException} at the deadline,
+     * if the render has one. The timer is cancelled once the future is
+     * done.
+     */
+    void schedule() {
+        if (! timed)
+            return;
+        ScheduledFuture<?> t = Timer.timer.schedule(() -> timeout(), deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        future.whenComplete((x, e) -> t.cancel(false));
+    }
+
+    /**
+     * Complete the future with a {@link TimeoutException}.
+     */
+    void timeout() {
+        future.completeExceptionally(new TimeoutException("render deadline exceeded"));
+    }
+
+    /**
+     * Check the cancellation, once every {@link #interval} calls.
+     * @throws CancellationException if the render is cancelled
+     */
+    void check() {
+        if (++count == interval) {
+            count = 0;
+            checkNow();
+        }
+    }
+
+    /**
+     * Check the cancellation.
+     * @throws CancellationException if the render is cancelled
+     */
+    void checkNow() {
+        if (future.isDone())
+            throw new CancellationException("render cancelled");
+        if (expired())
+            throw new CancellationException("render deadline exceeded");
+    }
+
+    /**
+     * Is the deadline passed.
+     * @return true if the render has a deadline that is passed
+     */
+    boolean expired() {
+        return timed && System.nanoTime() - deadline >= 0;
+    }
+
+    @Override
+    public void entered(TextDoc doc, int depth) {
+        check();
+    }
+
+    @Override
+    public void combined(TextDoc doc, int depth, TextBlock b) {
+        check();
+    }
+
+    /**
+     * Trace that checks the cancellation of a fold.
+     * @return trace
+     */
+    <R> DocFold.Trace<R> trace() {
+        return new DocFold.Trace<R>() {
+            @Override public void entered(TextDoc doc, int depth) {
+                check();
+            }
+            @Override public void combined(TextDoc doc, int depth, R r) {
+                check();
+            }
+        };
+    }
+
+    /**
+     * Trace that checks the cancellation before tracing.
+     * @param trace trace
+     * @return      trace
+     */
+    DocFold.Trace<TextBlock> then(DocFold.Trace<TextBlock> trace) {
+        return new DocFold.Trace<TextBlock>() {
+            @Override public void entered(TextDoc doc, int depth) {
+                check();
+            }
+            @Override public void combined(TextDoc doc, int depth, TextBlock b) {
+                check();
+                trace.combined(doc, depth, b);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,431 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.FVisitor;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Post order fold of documents that uses an explicit stack instead of
+ * recursion, so that deep documents (left nested hcat chains) do not
+ * overflow the thread stack.
+ * <p>
+ * Nodes are combined by a {@link FVisitor} that receives the fold results
+ * of the node {@link #children children}, in order. Fold results may be 
+ * memoized by node instance so that shared sub documents are folded once.
+ */
+public class DocFold {
+
+    /**
+     * Fold results by document instance.
+     */
+    public interface Memo<R> {
+
+        /**
+         * Memoized result.
+         * @param doc document
+         * @return    result, null if the document is not memoized
+         */
+        R get(TextDoc doc);
+
+        /**
+         * Memoize a result.
+         * @param doc document
+         * @param r   result
+         */
+        void put(TextDoc doc, R r);
+
+    }
+
+    /**
+     * Observer of the nodes combined by a fold.
+     */
+    interface Trace<R> {
+
+        /**
+         * The children of a node are about to be folded.
+         * @param doc   node
+         * @param depth depth of the node, 1 for the folded document
+         */
+        default void entered(TextDoc doc, int depth) {
+        }
+
+        /**
+         * A node has been combined.
+         * @param doc   node
+         * @param depth depth of the node, 1 for the folded document
+         * @param r     result
+         */
+        void combined(TextDoc doc, int depth, R r);
+
+    }
+
+    /**
+     * Memo backed by an identity hash map.
+     * @return new memo
+     */
+    public static <R> Memo<R> identityMemo() {
+        Map<TextDoc, R> m = new IdentityHashMap<>();
+        return new Memo<R>() {
+            @Override public R get(TextDoc doc) {
+                return m.get(doc);
+            }
+            @Override public void put(TextDoc doc, R r) {
+                m.put(doc, r);
+            }
+        };
+    }
+
+    /**
+     * Children of a document, in rendering order. Table cells are listed
+     * row by row, short rows being completed with empty documents up to the
+     * column count of the table. The separator of a join is listed once,
+     * before the joined documents. The documents of a vertical stream are
+     * pulled.
+     */
+    public static final TextDoc.PVisitor<List<TextDoc>> children = new TextDoc.PVisitor<List<TextDoc>>() {
+        @Override public List<TextDoc> visit(Empty d) {
+            return Collections.emptyList();
+        }
+        @Override public List<TextDoc> visit(Fill d) {
+            return Collections.emptyList();
+        }
+        @Override public List<TextDoc> visit(Group d) {
+            return Collections.singletonList(d.doc);
+        }
+        @Override public List<TextDoc> visit(Hole d) {
+            return Collections.emptyList();
+        }
+        @Override public List<TextDoc> visit(HorizontalAlign d) {
+            return Arrays.asList(d.left, d.right);
+        }
+        @Override public List<TextDoc> visit(HorizontalAlignList d) {
+            return d.docs;
+        }
+        @Override public List<TextDoc> visit(HorizontalConcat d) {
+            return Arrays.asList(d.left, d.right);
+        }
+        @Override public List<TextDoc> visit(HorizontalConcatList d) {
+            return d.docs;
+        }
+        @Override public List<TextDoc> visit(Indent d) {
+            return Collections.singletonList(d.doc);
+        }
+        @Override public List<TextDoc> visit(Join d) {
+            List<TextDoc> docs = new ArrayList<>(d.docs.size() + 1);
+            docs.add(d.separator);
+            docs.addAll(d.docs);
+            return docs;
+        }
+        @Override public List<TextDoc> visit(Nest d) {
+            return Collections.singletonList(d.doc);
+        }
+        @Override public List<TextDoc> visit(SoftLine d) {
+            return Collections.emptyList();
+        }
+        @Override public List<TextDoc> visit(Table d) {
+            int columns = columns(d);
+            List<TextDoc> cells = new ArrayList<>(columns * d.rows.size());
+            for (List<TextDoc> r : d.rows) {
+                cells.addAll(r);
+                for (int c = r.size(); c < columns; c++)
+                    cells.add(empty);
+            }
+            return cells;
+        }
+        @Override public List<TextDoc> visit(Text d) {
+            return Collections.emptyList();
+        }
+        @Override public List<TextDoc> visit(VerticalAlign d) {
+            return d.docs;
+        }
+        @Override public List<TextDoc> visit(VerticalStream d) {
+            List<TextDoc> docs = new ArrayList<>();
+            for (TextDoc x : d.docs)
+                docs.add(x);
+            return docs;
+        }
+    };
+
+    /**
+     * Children of a document, as {@link #children}, but the documents of a
+     * vertical stream are not pulled: a stream has no children.
+     */
+    public static final TextDoc.PVisitor<List<TextDoc>> unstreamed = new TextDoc.PVisitor<List<TextDoc>>() {
+        @Override public List<TextDoc> visit(Empty d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Fill d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Group d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Hole d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(HorizontalAlign d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(HorizontalAlignList d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(HorizontalConcat d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(HorizontalConcatList d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Indent d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Join d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Nest d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(SoftLine d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Table d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(Text d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(VerticalAlign d) {
+            return d.accept(children);
+        }
+        @Override public List<TextDoc> visit(VerticalStream d) {
+            return Collections.emptyList();
+        }
+    };
+
+    /**
+     * Copy of a document with one of its {@link #children children} replaced.
+     * Replacing a table cell past the end of its row extends the row with
+     * empty documents.
+     * @param doc   document
+     * @param i     child index
+     * @param child replacement
+     * @return      new document
+     * @throws IndexOutOfBoundsException if the document has no such child
+     * @throws IllegalArgumentException if the document is a vertical stream,
+     *         see {@link maamissiniva.text.format.Measure#measurable(TextDoc)}
+     */
+    public static TextDoc withChild(TextDoc doc, int i, TextDoc child) {
+        return doc.accept(i, new TextDoc.FVisitor<Integer, TextDoc>() {
+            @Override public TextDoc visit(Integer i, Empty d) {
+                throw new IndexOutOfBoundsException("empty has no child");
+            }
+            @Override public TextDoc visit(Integer i, Fill d) {
+                throw new IndexOutOfBoundsException("fill has no child");
+            }
+            @Override public TextDoc visit(Integer i, Group d) {
+                if (i != 0)
+                    throw new IndexOutOfBoundsException("child " + i);
+                return new Group(child);
+            }
+            @Override public TextDoc visit(Integer i, Hole d) {
+                throw new IndexOutOfBoundsException("hole has no child");
+            }
+            @Override public TextDoc visit(Integer i, HorizontalAlign d) {
+                switch (i) {
+                case 0  : return new HorizontalAlign(child, d.right);
+                case 1  : return new HorizontalAlign(d.left, child);
+                default : throw new IndexOutOfBoundsException("child " + i);
+                }
+            }
+            @Override public TextDoc visit(Integer i, HorizontalAlignList d) {
+                return new HorizontalAlignList(with(d.docs, i));
+            }
+            @Override public TextDoc visit(Integer i, HorizontalConcat d) {
+                switch (i) {
+                case 0  : return new HorizontalConcat(child, d.right);
+                case 1  : return new HorizontalConcat(d.left, child);
+                default : throw new IndexOutOfBoundsException("child " + i);
+                }
+            }
+            @Override public TextDoc visit(Integer i, HorizontalConcatList d) {
+                return new HorizontalConcatList(with(d.docs, i));
+            }
+            @Override public TextDoc visit(Integer i, Indent d) {
+                if (i != 0)
+                    throw new IndexOutOfBoundsException("child " + i);
+                return new Indent(d.indent, child);
+            }
+            @Override public TextDoc visit(Integer i, Join d) {
+                if (i == 0)
+                    return new Join(d.docs, child, d.vertical);
+                return new Join(with(d.docs, i - 1), d.separator, d.vertical);
+            }
+            @Override public TextDoc visit(Integer i, Nest d) {
+                if (i != 0)
+                    throw new IndexOutOfBoundsException("child " + i);
+                return new Nest(d.indent, child);
+            }
+            @Override public TextDoc visit(Integer i, SoftLine d) {
+                throw new IndexOutOfBoundsException("soft line has no child");
+            }
+            @Override public TextDoc visit(Integer i, Table d) {
+                int columns = columns(d);
+                if (i < 0 || i >= columns * d.rows.size())
+                    throw new IndexOutOfBoundsException("child " + i);
+                List<List<TextDoc>> rows = new ArrayList<>(d.rows);
+                List<TextDoc> row = new ArrayList<>(rows.get(i / columns));
+                while (row.size() <= i % columns)
+                    row.add(empty);
+                row.set(i % columns, child);
+                rows.set(i / columns, row);
+                return new Table(rows);
+            }
+            @Override public TextDoc visit(Integer i, Text d) {
+                throw new IndexOutOfBoundsException("text has no child");
+            }
+            @Override public TextDoc visit(Integer i, VerticalAlign d) {
+                return new VerticalAlign(with(d.docs, i));
+            }
+            @Override public TextDoc visit(Integer i, VerticalStream d) {
+                throw new IllegalArgumentException("documents of a vertical stream are not replaced, see Measure.measurable");
+            }
+            List<TextDoc> with(List<TextDoc> docs, int i) {
+                List<TextDoc> l = new ArrayList<>(docs);
+                l.set(i, child);
+                return l;
+            }
+        });
+    }
+
+    /**
+     * Stack frame: document, its children and the results of the children
+     * that have been folded.
+     */
+    private static class Frame<R> {
+
+        final TextDoc       doc;
+        final List<TextDoc> children;
+        final List<R>       results;
+
+        Frame(TextDoc doc, TextDoc.PVisitor<List<TextDoc>> children) {
+            this.doc      = doc;
+            this.children = doc.accept(children);
+            this.results  = this.children.isEmpty() ? Collections.emptyList() : new ArrayList<>(this.children.size());
+        }
+
+    }
+
+    /**
+     * Number of columns of a table.
+     * @param d table
+     * @return  maximum row size
+     */
+    public static int columns(Table d) {
+        int columns = 0;
+        for (List<TextDoc> r : d.rows)
+            columns = Math.max(columns, r.size());
+        return columns;
+    }
+
+    /**
+     * Fold a document.
+     * @param doc     document
+     * @param combine combines a node with the results of its children
+     * @return        fold result
+     */
+    public static <R> R fold(TextDoc doc, FVisitor<List<R>, R> combine) {
+        return fold(doc, combine, null);
+    }
+
+    /**
+     * Fold a document, memoizing results.
+     * @param doc     document
+     * @param combine combines a node with the results of its children
+     * @param memo    memoized results, null for no memoization
+     * @return        fold result
+     */
+    public static <R> R fold(TextDoc doc, FVisitor<List<R>, R> combine, Memo<R> memo) {
+        return fold(doc, children, combine, memo);
+    }
+
+    /**
+     * Fold a document whose nodes are combined with the results of some of
+     * their descendants instead of their children.
+     * @param doc      document
+     * @param children descendants that are folded before a node, in order
+     * @param combine  combines a node with the results of its descendants
+     * @param memo     memoized results, null for no memoization
+     * @return         fold result
+     */
+    public static <R> R fold(TextDoc doc, TextDoc.PVisitor<List<TextDoc>> children, FVisitor<List<R>, R> combine, Memo<R> memo) {
+        return fold(doc, children, combine, memo, null);
+    }
+
+    /**
+     * Fold a document, reporting the combined nodes.
+     * @param doc      document
+     * @param children descendants that are folded before a node, in order
+     * @param combine  combines a node with the results of its descendants
+     * @param memo     memoized results, null for no memoization
+     * @param trace    observer of the combined nodes, null for none
+     * @return         fold result
+     */
+    static <R> R fold(TextDoc doc, TextDoc.PVisitor<List<TextDoc>> children, FVisitor<List<R>, R> combine, Memo<R> memo, Trace<R> trace) {
+        if (memo != null) {
+            R r = memo.get(doc);
+            if (r != null)
+                return r;
+        }
+        Deque<Frame<R>> stack = new ArrayDeque<>();
+        stack.push(new Frame<>(doc, children));
+        while (true) {
+            Frame<R> f = stack.peek();
+            if (f.results.size() < f.children.size()) {
+                TextDoc c = f.children.get(f.results.size());
+                R r = memo == null ? null : memo.get(c);
+                if (r == null) {
+                    if (trace != null)
+                        trace.entered(c, stack.size() + 1);
+                    stack.push(new Frame<>(c, children));
+                } else
+                    f.results.add(r);
+            } else {
+                stack.pop();
+                R r = f.doc.accept(f.results, combine);
+                if (memo != null)
+                    memo.put(f.doc, r);
+                if (trace != null)
+                    trace.combined(f.doc, stack.size() + 1, r);
+                if (stack.isEmpty())
+                    return r;
+                stack.peek().results.add(r);
+            }
+        }
+    }
+
+}
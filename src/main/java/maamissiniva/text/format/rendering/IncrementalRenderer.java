@@ -0,0 +1,485 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Renderer of successive versions of a document. The block of every node
+ * of the current version is kept, documents are edited by replacing the
+ * node at some path: the nodes of the path are copied (the document is
+ * persistent, previous versions are unchanged) and only they are rendered
+ * again, the other nodes being looked up by instance.
+ * <p>
+ * The cost of an edit depends on the path nodes, not on the size of the
+ * change alone: every path node is copied with its list of children and
+ * combines the blocks of all its children again, so an edit costs at least
+ * the number of siblings of the path nodes. The combination is linear in
+ * the number of children for vertical alignments (their lines are not
+ * copied) and in the number of lines of the node for the other nodes. The
+ * line offsets of the edited children of list nodes are kept in Fenwick
+ * trees and updated in logarithmic time, the line offset of an edited table
+ * cell is computed from the cells of the rows above it. Documents that are
+ * edited often are best split in nested lists of bounded length: a child
+ * of a list of a million children combines a million blocks per edit, a
+ * child of three nested lists of a hundred children combines three
+ * hundred.
+ * <p>
+ * A path is a list of child indices, as listed by {@link DocFold#children},
+ * from the root. An edit reports the range of lines of the rendered
+ * document it replaced.
+ */
+public class IncrementalRenderer {
+
+    /**
+     * Lines [from, oldTo) of the previous version are replaced by
+     * lines [from, newTo) of the new version.
+     */
+    public static class Change {
+
+        public final int from;
+        public final int oldTo;
+        public final int newTo;
+
+        public Change(int from, int oldTo, int newTo) {
+            this.from  = from;
+            this.oldTo = oldTo;
+            this.newTo = newTo;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + from + ", " + oldTo + ") -> [" + from + ", " + newTo + ")";
+        }
+
+    }
+
+    private final Map<TextDoc, TextBlock> blocks = new IdentityHashMap<>();
+
+    private final DocFold.Memo<TextBlock> memo = new DocFold.Memo<TextBlock>() {
+        @Override public TextBlock get(TextDoc doc) {
+            return blocks.get(doc);
+        }
+        @Override public void put(TextDoc doc, TextBlock b) {
+            blocks.put(doc, b);
+        }
+    };
+
+    /**
+     * Line counts of the children of the list nodes of the current version
+     * whose children have been edited.
+     */
+    private final Map<TextDoc, Heights> heights = new IdentityHashMap<>();
+
+    private final StringRenderer renderer = new StringRenderer();
+
+    private TextDoc   doc;
+    private TextBlock block;
+    private int       version;
+
+    /**
+     * Renders the initial version of a document.
+     * @param doc document
+     */
+    public IncrementalRenderer(TextDoc doc) {
+        this.doc   = doc;
+        this.block = renderer.render(doc, memo);
+    }
+
+    /**
+     * Current document version.
+     * @return document
+     */
+    public TextDoc doc() {
+        return doc;
+    }
+
+    /**
+     * Rendered current document version.
+     * @return block
+     */
+    public TextBlock block() {
+        return block;
+    }
+
+    /**
+     * Number of edits applied to the initial document.
+     * @return version number
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * Rendered current document version.
+     * @return text
+     */
+    public String text() {
+        return StringRenderer.getText(block);
+    }
+
+    /**
+     * Path to the first occurrence (depth first) of a document instance
+     * in the current version. Costs a traversal of the document.
+     * @param d document instance
+     * @return  path, null if the document does not occur
+     */
+    public int[] path(TextDoc d) {
+        Deque<TextDoc> docs    = new ArrayDeque<>();
+        Deque<int[]>   indices = new ArrayDeque<>();
+        docs.push(doc);
+        indices.push(new int[0]);
+        while (! docs.isEmpty()) {
+            TextDoc x = docs.pop();
+            int[]   p = indices.pop();
+            if (x == d)
+                return p;
+            List<TextDoc> cs = x.accept(DocFold.children);
+            for (int i = cs.size() - 1; i >= 0; i--) {
+                int[] q = Arrays.copyOf(p, p.length + 1);
+                q[p.length] = i;
+                docs.push(cs.get(i));
+                indices.push(q);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace the node at some path and render the new version. Costs the
+     * rendering of the replacement, the combination of the children blocks
+     * of the path nodes and the removal of the replaced node blocks, that is
+     * time linear in the number of siblings of the path nodes.
+     * @param path        child indices from the root
+     * @param replacement new node
+     * @return            replaced lines
+     * @throws IndexOutOfBoundsException if the path does not exist
+     */
+    public Change replace(int[] path, TextDoc replacement) {
+        TextDoc[] olds = new TextDoc[path.length + 1];
+        olds[0] = doc;
+        for (int i = 0; i < path.length; i++) {
+            List<TextDoc> cs = olds[i].accept(DocFold.children);
+            olds[i + 1] = cs.get(path[i]);
+        }
+        TextDoc[] news = new TextDoc[path.length + 1];
+        news[path.length] = replacement;
+        for (int i = path.length - 1; i >= 0; i--)
+            news[i] = DocFold.withChild(olds[i], path[i], news[i + 1]);
+        TextBlock[] oldBlocks = new TextBlock[olds.length];
+        for (int i = 0; i < olds.length; i++)
+            oldBlocks[i] = block(olds[i]);
+        for (int i = 0; i < path.length; i++)
+            blocks.remove(olds[i]);
+        forget(olds[path.length]);
+        TextBlock b = block(news[0]);
+        Change c = new Change(0, oldBlocks[path.length].height, block(replacement).height);
+        for (int i = path.length - 1; i >= 0; i--) {
+            Lift l = new Lift(path[i], oldBlocks[i + 1], block(news[i + 1]), oldBlocks[i], block(news[i]));
+            c = olds[i].accept(c, l);
+            Heights h = heights.remove(olds[i]);
+            if (h != null && l.index >= 0) {
+                h.add(l.index, weight(news[i], block(news[i + 1])) - weight(olds[i], oldBlocks[i + 1]));
+                heights.put(news[i], h);
+            }
+        }
+        doc   = news[0];
+        block = b;
+        version++;
+        return c;
+    }
+
+    /**
+     * Block of a document, rendered if it is not known.
+     * @param d document
+     * @return  block
+     */
+    private TextBlock block(TextDoc d) {
+        return renderer.render(d, memo);
+    }
+
+    /**
+     * Remove the blocks of a document and of its sub documents.
+     * @param d document
+     */
+    private void forget(TextDoc d) {
+        Deque<TextDoc> docs = new ArrayDeque<>();
+        docs.push(d);
+        while (! docs.isEmpty()) {
+            TextDoc x = docs.pop();
+            heights.remove(x);
+            if (blocks.remove(x) != null)
+                for (TextDoc c : x.accept(DocFold.children))
+                    docs.push(c);
+        }
+    }
+
+    /**
+     * Number of lines a child adds to a list node: its height for vertical
+     * alignments, the height of the item it is joined with the separator in
+     * for vertical joins, its height minus one for concatenations.
+     * @param parent list node
+     * @param b      child block
+     * @return       number of lines
+     */
+    private int weight(TextDoc parent, TextBlock b) {
+        if (parent instanceof VerticalAlign)
+            return b.height;
+        if (parent instanceof Join && ((Join) parent).vertical) {
+            int separator = block(((Join) parent).separator).height;
+            return b.height == 0 || separator == 0 ? b.height + separator : b.height + separator - 1;
+        }
+        return Math.max(0, b.height - 1);
+    }
+
+    /**
+     * Line counts of the children of a list node, built if they are not
+     * known.
+     * @param parent list node
+     * @param docs   children
+     * @param edited index of the edited child, whose block is replaced
+     * @param old    block of the edited child before the edit
+     * @return       line counts
+     */
+    private Heights heights(TextDoc parent, List<TextDoc> docs, int edited, TextBlock old) {
+        Heights h = heights.get(parent);
+        if (h == null) {
+            int[] ws = new int[docs.size()];
+            for (int k = 0; k < ws.length; k++)
+                ws[k] = weight(parent, k == edited ? old : block(docs.get(k)));
+            h = new Heights(ws);
+            heights.put(parent, h);
+        }
+        return h;
+    }
+
+    /**
+     * Fenwick tree of the line counts of the children of a list node.
+     */
+    private static class Heights {
+
+        final int[] tree;
+
+        Heights(int[] ws) {
+            tree = new int[ws.length + 1];
+            for (int i = 1; i <= ws.length; i++) {
+                tree[i] += ws[i - 1];
+                int j = i + (i & -i);
+                if (j <= ws.length)
+                    tree[j] += tree[i];
+            }
+        }
+
+        /**
+         * Change the line count of a child.
+         * @param i     child index
+         * @param delta change
+         */
+        void add(int i, int delta) {
+            for (i++; i < tree.length; i += i & -i)
+                tree[i] += delta;
+        }
+
+        /**
+         * Line count of the first children.
+         * @param n number of children
+         * @return  sum of their line counts
+         */
+        int sum(int n) {
+            int s = 0;
+            for (; n > 0; n -= n & -n)
+                s += tree[n];
+            return s;
+        }
+
+    }
+
+    /**
+     * Maps a change of a child block to a change of its parent block. Lines
+     * of other children that move because of a change of the child width
+     * or emptiness are included in the change.
+     */
+    private class Lift implements TextDoc.FVisitor<Change, Change> {
+
+        final int       child;
+        final TextBlock oldChild;
+        final TextBlock newChild;
+        final TextBlock oldParent;
+        final TextBlock newParent;
+        // Index of the child in the list of a list node, -1 if the parent
+        // is not a list node or if the child is a separator
+        int             index = -1;
+
+        Lift(int child, TextBlock oldChild, TextBlock newChild, TextBlock oldParent, TextBlock newParent) {
+            this.child     = child;
+            this.oldChild  = oldChild;
+            this.newChild  = newChild;
+            this.oldParent = oldParent;
+            this.newParent = newParent;
+        }
+
+        boolean widthChanged() {
+            return oldChild.width != newChild.width || emptinessChanged();
+        }
+
+        boolean emptinessChanged() {
+            return (oldChild.height == 0) != (newChild.height == 0);
+        }
+
+        Change shift(Change c, int offset) {
+            return new Change(c.from + offset, c.oldTo + offset, c.newTo + offset);
+        }
+
+        Change toEnd(int from) {
+            return new Change(from, oldParent.height, newParent.height);
+        }
+
+        /**
+         * Change of a child whose first line is joined to the parent line
+         * start and whose last line is joined to the next sibling.
+         * @param c     child change
+         * @param start parent line of the first child line
+         * @return      parent change
+         */
+        Change hang(Change c, int start) {
+            if (widthChanged())
+                return toEnd(start);
+            int oldHeight = oldChild.height;
+            int newHeight = newChild.height;
+            if (oldHeight == newHeight)
+                return shift(c, start);
+            return toEnd(start + Math.max(0, Math.min(c.from, Math.min(oldHeight, newHeight) - 1)));
+        }
+
+        /**
+         * Number of lines a block adds to a concatenation.
+         * @param d document
+         * @return  height minus one, 0 for empty blocks
+         */
+        int hanging(TextDoc d) {
+            return Math.max(0, block(d).height - 1);
+        }
+
+        @Override public Change visit(Change c, Empty d) {
+            throw new IllegalStateException();
+        }
+        @Override public Change visit(Change c, Fill d) {
+            throw new IllegalStateException();
+        }
+        @Override public Change visit(Change c, Group d) {
+            return c;
+        }
+        @Override public Change visit(Change c, Hole d) {
+            throw new IllegalStateException();
+        }
+        @Override public Change visit(Change c, HorizontalAlign d) {
+            if (child == 0 && widthChanged())
+                return toEnd(0);
+            if (oldChild.height != newChild.height)
+                return toEnd(c.from);
+            return c;
+        }
+        @Override public Change visit(Change c, HorizontalAlignList d) {
+            if (child < d.docs.size() - 1 && widthChanged())
+                return toEnd(0);
+            if (oldChild.height != newChild.height)
+                return toEnd(c.from);
+            return c;
+        }
+        @Override public Change visit(Change c, HorizontalConcat d) {
+            // The last line of the left block is joined with the first line of the right block
+            if (child == 0) {
+                if (widthChanged())
+                    return toEnd(0);
+                int oldHeight = oldChild.height;
+                int newHeight = newChild.height;
+                if (c.oldTo < oldHeight && c.newTo < newHeight)
+                    return c;
+                return new Change(Math.max(0, Math.min(c.from, Math.min(oldHeight, newHeight) - 1)), oldHeight, newHeight);
+            }
+            if (emptinessChanged())
+                return toEnd(0);
+            int lHeight = block(d.left).height;
+            if (lHeight == 0)
+                return c;
+            if (c.from == 0 && c.oldTo == 0)
+                c = new Change(0, 1, c.newTo + 1);
+            else if (c.from == 0 && c.newTo == 0)
+                c = new Change(0, c.oldTo + 1, 1);
+            return shift(c, lHeight - 1);
+        }
+        @Override public Change visit(Change c, HorizontalConcatList d) {
+            index = child;
+            return hang(c, heights(d, d.docs, child, oldChild).sum(child));
+        }
+        @Override public Change visit(Change c, Indent d) {
+            return c;
+        }
+        @Override public Change visit(Change c, Join d) {
+            if (child == 0)
+                return toEnd(0);
+            index = child - 1;
+            int before = heights(d, d.docs, index, oldChild).sum(index);
+            if (! d.vertical)
+                return hang(c, index * hanging(d.separator) + before);
+            // Items are the documents concatenated with the separator, but the last one
+            int offset = before;
+            if (index == d.docs.size() - 1 || ! widthChanged() && oldChild.height == newChild.height)
+                return shift(c, offset);
+            return toEnd(offset + Math.max(0, Math.min(c.from, Math.min(oldChild.height, newChild.height) - 1)));
+        }
+        @Override public Change visit(Change c, Nest d) {
+            return c;
+        }
+        @Override public Change visit(Change c, SoftLine d) {
+            throw new IllegalStateException();
+        }
+        @Override public Change visit(Change c, Table d) {
+            if (oldChild.width != newChild.width || oldChild.height != newChild.height)
+                return toEnd(0);
+            int columns = DocFold.columns(d);
+            List<TextDoc> cells = d.accept(DocFold.children);
+            int offset = 0;
+            for (int r = 0; r < child / columns; r++) {
+                int height = 0;
+                for (int k = r * columns; k < (r + 1) * columns; k++)
+                    height = Math.max(height, block(cells.get(k)).height);
+                offset += height;
+            }
+            return shift(c, offset);
+        }
+        @Override public Change visit(Change c, Text d) {
+            throw new IllegalStateException();
+        }
+        @Override public Change visit(Change c, VerticalAlign d) {
+            index = child;
+            return shift(c, heights(d, d.docs, child, oldChild).sum(child));
+        }
+        @Override public Change visit(Change c, VerticalStream d) {
+            throw new IllegalStateException();
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import maamissiniva.text.format.Measure;
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Renders a range of lines of a document, the visitor argument is the
+ * indentation. Documents are walked like the line streamer walks them but
+ * a document whose cached {@link TextDoc#measure() height} ends before the
+ * range is skipped without being rendered, and the walk stops at the end of
+ * the range. Vertical alignments, indentations and vertical joins are
+ * descended, the rows of tables are skipped using the heights of their
+ * cells, the other documents that intersect the range are rendered as
+ * blocks.
+ * <p>
+ * Documents that contain a vertical stream are not {@link Measure#measurable(TextDoc) measurable}:
+ * they are descended, or rendered as blocks if they are not vertical, and
+ * the lines are skipped as they are rendered. The documents of a stream
+ * are pulled once, up to the end of the range.
+ */
+class LineRange implements TextDoc.FVisitor<Integer, Void> {
+
+    /**
+     * Documents left to walk at some indentation.
+     */
+    private static class Frame {
+
+        final Iterator<? extends TextDoc> docs;
+        final int                         indent;
+
+        Frame(Iterator<? extends TextDoc> docs, int indent) {
+            this.docs   = docs;
+            this.indent = indent;
+        }
+
+    }
+
+    private final StringRenderer          renderer;
+    private final DocFold.Memo<TextBlock> memo;
+    private final Deque<Frame>            stack  = new ArrayDeque<>();
+    private final List<String>            lines  = new ArrayList<>();
+    private final StringBuilder           buffer = new StringBuilder();
+
+    /**
+     * Lines left to skip before the range.
+     */
+    private int skip;
+
+    /**
+     * Lines left to render.
+     */
+    private int left;
+
+    LineRange(StringRenderer renderer) {
+        this.renderer = renderer;
+        this.memo     = renderer.memo();
+    }
+
+    /**
+     * Lines of a document.
+     * @param doc  document
+     * @param from index of the first line
+     * @param to   index after the last line
+     * @return     lines, fewer than asked for if the document ends before
+     *             the end of the range
+     */
+    List<String> lines(TextDoc doc, int from, int to) {
+        skip = from;
+        left = to - from;
+        stack.push(new Frame(Collections.singletonList(doc).iterator(), 0));
+        while (left > 0 && ! stack.isEmpty()) {
+            Frame f = stack.peek();
+            if (f.docs.hasNext()) {
+                TextDoc d = f.docs.next();
+                if (Measure.measurable(d)) {
+                    int height = d.measure().height;
+                    if (height <= skip) {
+                        skip -= height;
+                        continue;
+                    }
+                }
+                d.accept(f.indent, this);
+            } else
+                stack.pop();
+        }
+        return lines;
+    }
+
+    private Void block(int indent, TextDoc d) {
+        return block(indent, renderer.render(d, memo));
+    }
+
+    /**
+     * Render the lines of a block that are in the range.
+     * @param indent indentation
+     * @param b      block
+     * @return       null
+     */
+    private Void block(int indent, TextBlock b) {
+        for (int r = 0; r < b.runs() && left > 0; r++) {
+            List<TextLine> ls  = b.run(r);
+            int            end = Math.min(ls.size(), skip + left);
+            for (int i = skip; i < end; i++)
+                line(indent + b.offset(r), ls.get(i));
+            skip = Math.max(0, skip - ls.size());
+        }
+        return null;
+    }
+
+    private void line(int indent, TextLine l) {
+        buffer.setLength(0);
+        StringRenderer.render(l, indent, buffer);
+        lines.add(buffer.toString());
+        left--;
+    }
+
+    @Override public Void visit(Integer a, Empty d) {
+        return null;
+    }
+    @Override public Void visit(Integer a, Fill d) {
+        return block(a, Blocks.fill(Wrapping.of(d.text, d.width, d.optimal)));
+    }
+    @Override public Void visit(Integer a, Group d) {
+        stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a));
+        return null;
+    }
+    @Override public Void visit(Integer a, Hole d) {
+        throw StringRenderer.unfilled(d);
+    }
+    @Override public Void visit(Integer a, HorizontalAlign d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, HorizontalAlignList d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, HorizontalConcat d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, HorizontalConcatList d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, Indent d) {
+        stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a + Math.max(0, d.indent)));
+        return null;
+    }
+    @Override public Void visit(Integer a, Join d) {
+        if (! d.vertical || d.docs.isEmpty())
+            return block(a, d);
+        // Items but the last one are followed by the separator
+        for (TextDoc x : d.docs.subList(0, d.docs.size() - 1)) {
+            TextDoc item = new HorizontalConcat(x, d.separator);
+            if (Measure.measurable(item) && item.measure().height <= skip)
+                skip -= item.measure().height;
+            else
+                block(a, item);
+            if (left == 0)
+                return null;
+        }
+        stack.push(new Frame(Collections.singletonList(d.docs.get(d.docs.size() - 1)).iterator(), a));
+        return null;
+    }
+    @Override public Void visit(Integer a, Nest d) {
+        stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a));
+        return null;
+    }
+    @Override public Void visit(Integer a, SoftLine d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, Table d) {
+        if (! Measure.measurable(d))
+            return block(a, d);
+        int           columns = DocFold.columns(d);
+        List<TextDoc> cells   = d.accept(DocFold.children);
+        int[]         widths  = new int[columns];
+        for (int i = 0; i < cells.size(); i++)
+            widths[i % columns] = Math.max(widths[i % columns], cells.get(i).measure().width);
+        TextLine.Builder lb = new TextLine.Builder();
+        for (int r = 0; r < d.rows.size() && left > 0; r++) {
+            List<TextDoc> row    = cells.subList(r * columns, (r + 1) * columns);
+            int           height = 0;
+            for (TextDoc c : row)
+                height = Math.max(height, c.measure().height);
+            if (height <= skip) {
+                skip -= height;
+                continue;
+            }
+            List<TextBlock> blocks = new ArrayList<>(columns);
+            for (TextDoc c : row)
+                blocks.add(renderer.render(c, memo));
+            int end = Math.min(height, skip + left);
+            for (int l = skip; l < end; l++)
+                line(a, Blocks.row(lb, widths, blocks, l));
+            skip = 0;
+        }
+        return null;
+    }
+    @Override public Void visit(Integer a, Text d) {
+        return block(a, d);
+    }
+    @Override public Void visit(Integer a, VerticalAlign d) {
+        stack.push(new Frame(d.docs.iterator(), a));
+        return null;
+    }
+    @Override public Void visit(Integer a, VerticalStream d) {
+        stack.push(new Frame(d.docs.iterator(), a));
+        return null;
+    }
+
+}
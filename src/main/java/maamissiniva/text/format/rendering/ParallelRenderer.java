@@ -0,0 +1,215 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Fork/join renderer. List nodes (vertical alignments, n-ary concatenations
+ * and alignments, joins) and tables that have at least threshold children
+ * (resp. rows) are large: their children are rendered
+ * by tasks, in chunks, and combined in order once joined. The other nodes
+ * are rendered by a sequential {@link DocFold} in which the large nodes
+ * are looked up. The output is the one of the sequential renderer.
+ * Shared sub documents are scanned once and a large node that occurs
+ * several times is rendered by a single task.
+ * Vertical streams are rendered by the sequential fold, the documents they
+ * pull are not forked.
+ */
+class ParallelRenderer {
+
+    private final StringRenderer renderer;
+    private final int            threshold;
+
+    ParallelRenderer(StringRenderer renderer, int threshold) {
+        this.renderer  = renderer;
+        this.threshold = Math.max(2, threshold);
+    }
+
+    TextBlock render(TextDoc doc, ForkJoinPool pool) {
+        return pool.invoke(new DocTask(doc));
+    }
+
+    /**
+     * Number of children of a large node, 0 if the node is not large.
+     */
+    private final TextDoc.PVisitor<Integer> size = new TextDoc.PVisitor<Integer>() {
+        @Override public Integer visit(Empty d) {
+            return 0;
+        }
+        @Override public Integer visit(Fill d) {
+            return 0;
+        }
+        @Override public Integer visit(Group d) {
+            return 0;
+        }
+        @Override public Integer visit(Hole d) {
+            return 0;
+        }
+        @Override public Integer visit(HorizontalAlign d) {
+            return 0;
+        }
+        @Override public Integer visit(HorizontalAlignList d) {
+            return d.docs.size() >= threshold ? d.docs.size() : 0;
+        }
+        @Override public Integer visit(HorizontalConcat d) {
+            return 0;
+        }
+        @Override public Integer visit(HorizontalConcatList d) {
+            return d.docs.size() >= threshold ? d.docs.size() : 0;
+        }
+        @Override public Integer visit(Indent d) {
+            return 0;
+        }
+        @Override public Integer visit(Join d) {
+            return d.docs.size() >= threshold ? d.docs.size() : 0;
+        }
+        @Override public Integer visit(Nest d) {
+            return 0;
+        }
+        @Override public Integer visit(SoftLine d) {
+            return 0;
+        }
+        @Override public Integer visit(Table d) {
+            return d.rows.size() >= threshold ? d.rows.size() : 0;
+        }
+        @Override public Integer visit(Text d) {
+            return 0;
+        }
+        @Override public Integer visit(VerticalAlign d) {
+            return d.docs.size() >= threshold ? d.docs.size() : 0;
+        }
+        @Override public Integer visit(VerticalStream d) {
+            return 0;
+        }
+    };
+
+    /**
+     * Renders a document: large nodes below the document are forked, the
+     * document is then folded.
+     */
+    private class DocTask extends RecursiveTask<TextBlock> {
+
+        private static final long serialVersionUID = 1L;
+
+        final TextDoc doc;
+
+        DocTask(TextDoc doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        protected TextBlock compute() {
+            if (doc.accept(size) > 0)
+                return large(doc);
+            List<TextDoc>   larges  = new ArrayList<>();
+            Deque<TextDoc>  docs    = new ArrayDeque<>();
+            Set<TextDoc>    visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            docs.push(doc);
+            while (! docs.isEmpty()) {
+                TextDoc d = docs.pop();
+                if (! visited.add(d))
+                    continue;
+                if (d.accept(size) > 0)
+                    larges.add(d);
+                else if (! (d instanceof VerticalStream))
+                    // Streams are pulled once, by the sequential render
+                    for (TextDoc c : d.accept(DocFold.children))
+                        docs.push(c);
+            }
+            if (larges.isEmpty())
+                return renderer.render(doc, renderer.memo());
+            List<DocTask> tasks = new ArrayList<>();
+            for (TextDoc d : larges)
+                tasks.add(new DocTask(d));
+            invokeAll(tasks);
+            Map<TextDoc, TextBlock> blocks = new IdentityHashMap<>();
+            for (DocTask t : tasks)
+                blocks.put(t.doc, t.join());
+            DocFold.Memo<TextBlock> memo = renderer.memo();
+            return renderer.render(doc, new DocFold.Memo<TextBlock>() {
+                @Override public TextBlock get(TextDoc d) {
+                    TextBlock b = blocks.get(d);
+                    return b != null || memo == null ? b : memo.get(d);
+                }
+                @Override public void put(TextDoc d, TextBlock b) {
+                    if (memo != null)
+                        memo.put(d, b);
+                }
+            });
+        }
+
+        /**
+         * Render a large node, children are rendered in chunks.
+         * @param d large node
+         * @return  block
+         */
+        TextBlock large(TextDoc d) {
+            List<TextDoc> children = d.accept(DocFold.children);
+            int n     = children.size();
+            int chunk = Math.max(threshold, n / (4 * getPool().getParallelism()));
+            if (d instanceof Table) {
+                int columns = DocFold.columns((Table) d);
+                chunk = Math.max(1, chunk / Math.max(1, columns)) * columns;
+            }
+            List<ChunkTask> tasks = new ArrayList<>();
+            for (int i = 0; i < n; i += chunk)
+                tasks.add(new ChunkTask(children.subList(i, Math.min(n, i + chunk))));
+            invokeAll(tasks);
+            List<TextBlock> blocks = new ArrayList<>(n);
+            for (ChunkTask t : tasks)
+                blocks.addAll(t.join());
+            return d.accept(blocks, StringRenderer.combine);
+        }
+
+    }
+
+    /**
+     * Renders a list of documents.
+     */
+    private class ChunkTask extends RecursiveTask<List<TextBlock>> {
+
+        private static final long serialVersionUID = 1L;
+
+        final List<TextDoc> docs;
+
+        ChunkTask(List<TextDoc> docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        protected List<TextBlock> compute() {
+            List<TextBlock> blocks = new ArrayList<>(docs.size());
+            for (TextDoc d : docs)
+                blocks.add(new DocTask(d).compute());
+            return blocks;
+        }
+
+    }
+
+}
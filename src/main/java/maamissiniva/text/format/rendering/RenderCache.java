@@ -0,0 +1,97 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc;
+
+/**
+ * Rendered blocks by document instance, kept across renders. The cache is
+ * bounded by the total number of cached lines, least recently used blocks
+ * are evicted first. The cache is thread safe, cached lines are sealed so
+ * they can be shared by concurrent renders.
+ */
+public class RenderCache implements DocFold.Memo<TextBlock> {
+
+    /**
+     * Identity key, documents are cached by instance.
+     */
+    private static class Key {
+
+        final TextDoc doc;
+
+        Key(TextDoc doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(doc);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).doc == doc;
+        }
+
+    }
+
+    private final Map<Key, TextBlock> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Maximum number of cached lines.
+     */
+    public final int maxLines;
+
+    private int lines;
+
+    /**
+     * Cache that holds at most the given number of lines. Each block counts
+     * for its height plus one.
+     * @param maxLines maximum number of cached lines
+     */
+    public RenderCache(int maxLines) {
+        this.maxLines = maxLines;
+    }
+
+    @Override
+    public synchronized TextBlock get(TextDoc doc) {
+        return blocks.get(new Key(doc));
+    }
+
+    @Override
+    public synchronized void put(TextDoc doc, TextBlock b) {
+        int weight = b.height + 1;
+        if (weight > maxLines)
+            return;
+        for (TextLine l : b.lines)
+            l.seal();
+        TextBlock old = blocks.put(new Key(doc), b);
+        if (old != null)
+            lines -= old.height + 1;
+        lines += weight;
+        Iterator<TextBlock> i = blocks.values().iterator();
+        while (lines > maxLines) {
+            lines -= i.next().height + 1;
+            i.remove();
+        }
+    }
+
+    /**
+     * Remove all cached blocks.
+     */
+    public synchronized void clear() {
+        blocks.clear();
+        lines = 0;
+    }
+
+    /**
+     * Number of cached blocks.
+     * @return number of cached blocks
+     */
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+}
@@ -0,0 +1,53 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the statistics of the renders of a
+ * {@link StringRenderer#withListener(RenderListener) renderer}. Renderers
+ * without listener are not instrumented.
+ * <p>
+ * Listeners can record slow renders as JDK Flight Recorder events (JDK 11+,
+ * the library targets Java 8):
+ * <pre>
+ *    &#64;Name("app.Render") &#64;Label("Render")
+ *    class RenderEvent extends jdk.jfr.Event {
+ *        &#64;Label("Nodes") long nodes;
+ *        &#64;Label("Lines") long lines;
+ *        &#64;Timespan       long layout;
+ *    }
+ *    RenderListener jfr = RenderListener.slowerThan(10, TimeUnit.MILLISECONDS, s -&gt; {
+ *        RenderEvent e = new RenderEvent();
+ *        e.nodes  = s.nodes();
+ *        e.lines  = s.lines();
+ *        e.layout = s.nanos(RenderStats.Phase.LAYOUT);
+ *        e.commit();
+ *    });
+ * </pre>
+ */
+public interface RenderListener {
+
+    /**
+     * A render is complete, called by the rendering thread.
+     * @param stats statistics of the render
+     */
+    void rendered(RenderStats stats);
+
+    /**
+     * Listener that only receives the renders that last at least some time.
+     * @param threshold minimum duration
+     * @param unit      unit of the duration
+     * @param listener  listener of the slow renders
+     * @return          listener
+     */
+    static RenderListener slowerThan(long threshold, TimeUnit unit, RenderListener listener) {
+        long nanos = unit.toNanos(threshold);
+        return new RenderListener() {
+            @Override public void rendered(RenderStats stats) {
+                if (stats.elapsed() >= nanos)
+                    listener.rendered(stats);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,390 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Predicate;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Compiled document. A document is normalized and laid out once, the plan
+ * keeps the rendered lines, trailing padding removed, in a flat array so
+ * that rendering a plan only copies the lines. Plans are immutable and can
+ * be rendered concurrently.
+ */
+public class RenderPlan {
+
+    /**
+     * Normalized document.
+     */
+    private final TextDoc doc;
+
+    /**
+     * Rendered lines.
+     */
+    private final String[] lines;
+
+    /**
+     * Block width, padding included.
+     */
+    public final int width;
+
+    /**
+     * Length of the rendered text.
+     */
+    public final int length;
+
+    private RenderPlan(TextDoc doc, String[] lines, int width) {
+        int length = Math.max(0, lines.length - 1);
+        for (String l : lines)
+            length += l.length();
+        this.doc    = doc;
+        this.lines  = lines;
+        this.width  = width;
+        this.length = length;
+    }
+
+    /**
+     * Compile a document.
+     * @param doc document
+     * @return    plan
+     */
+    public static RenderPlan compile(TextDoc doc) {
+        return compile(doc, new StringRenderer());
+    }
+
+    /**
+     * Compile a document, laying it out with a renderer.
+     * @param doc      document
+     * @param renderer renderer
+     * @return         plan
+     */
+    public static RenderPlan compile(TextDoc doc, StringRenderer renderer) {
+        TextDoc       n     = normalize(doc);
+        TextBlock     b     = renderer.render(n);
+        String[]      lines = new String[b.height];
+        StringBuilder sb    = new StringBuilder(b.width);
+        for (int i = 0; i < lines.length; i++) {
+            sb.setLength(0);
+            StringRenderer.render(b.lines.get(i), sb);
+            lines[i] = sb.toString();
+        }
+        return new RenderPlan(n, lines, b.width);
+    }
+
+    /**
+     * Normalized document that has been compiled.
+     * @return document
+     */
+    public TextDoc doc() {
+        return doc;
+    }
+
+    /**
+     * Number of lines.
+     * @return height
+     */
+    public int height() {
+        return lines.length;
+    }
+
+    /**
+     * Rendered line.
+     * @param i line index
+     * @return  line without trailing padding
+     */
+    public String line(int i) {
+        return lines[i];
+    }
+
+    /**
+     * Rendered text, same as {@link StringRenderer#getText(TextDoc)} of the
+     * compiled document.
+     * @return text
+     */
+    public String text() {
+        StringBuilder sb = new StringBuilder(length);
+        try {
+            write(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Render to a sink, lines are separated by '\n'.
+     * @param out sink
+     * @throws IOException if the sink fails
+     */
+    public void write(Appendable out) throws IOException {
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0)
+                out.append('\n');
+            out.append(lines[i]);
+        }
+    }
+
+    /**
+     * Normalize a document without changing its rendering: empty documents
+     * are removed, nested concatenations, alignments and indentations are
+     * flattened and adjacent texts of concatenations and alignments are merged.
+     * @param doc document
+     * @return    normalized document
+     */
+    public static TextDoc normalize(TextDoc doc) {
+        return DocFold.fold(doc, operands, normalize, DocFold.identityMemo());
+    }
+
+    /**
+     * Children of the nodes, concatenations (resp. alignments) are folded
+     * with the operands of their nested concatenations (resp. alignments)
+     * so that nested nodes are not normalized one by one.
+     */
+    private static final TextDoc.PVisitor<List<TextDoc>> operands = new TextDoc.PVisitor<List<TextDoc>>() {
+        @Override public List<TextDoc> visit(Empty d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Fill d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Group d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Hole d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(HorizontalAlign d) {
+            return flatten(d, x -> x instanceof HorizontalAlign || x instanceof HorizontalAlignList);
+        }
+        @Override public List<TextDoc> visit(HorizontalAlignList d) {
+            return flatten(d, x -> x instanceof HorizontalAlign || x instanceof HorizontalAlignList);
+        }
+        @Override public List<TextDoc> visit(HorizontalConcat d) {
+            return flatten(d, x -> x instanceof HorizontalConcat || x instanceof HorizontalConcatList);
+        }
+        @Override public List<TextDoc> visit(HorizontalConcatList d) {
+            return flatten(d, x -> x instanceof HorizontalConcat || x instanceof HorizontalConcatList);
+        }
+        @Override public List<TextDoc> visit(Indent d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Join d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Nest d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(SoftLine d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Table d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(Text d) {
+            return d.accept(DocFold.children);
+        }
+        @Override public List<TextDoc> visit(VerticalAlign d) {
+            return flatten(d, x -> x instanceof VerticalAlign);
+        }
+        @Override public List<TextDoc> visit(VerticalStream d) {
+            return d.accept(DocFold.children);
+        }
+    };
+
+    /**
+     * Descendants of a node that are reached through nested nodes.
+     * @param d      node
+     * @param nested is a node a nested node
+     * @return       descendants, in order
+     */
+    private static List<TextDoc> flatten(TextDoc d, Predicate<TextDoc> nested) {
+        List<TextDoc>  ds    = new ArrayList<>();
+        Deque<TextDoc> stack = new ArrayDeque<>();
+        stack.push(d);
+        while (! stack.isEmpty()) {
+            TextDoc x = stack.pop();
+            if (x != d && ! nested.test(x)) {
+                ds.add(x);
+                continue;
+            }
+            List<TextDoc> cs = x.accept(DocFold.children);
+            for (int i = cs.size() - 1; i >= 0; i--)
+                stack.push(cs.get(i));
+        }
+        return ds;
+    }
+
+    private static final TextDoc.FVisitor<List<TextDoc>, TextDoc> normalize = new TextDoc.FVisitor<List<TextDoc>, TextDoc>() {
+        @Override public TextDoc visit(List<TextDoc> c, Empty d) {
+            return empty;
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Fill d) {
+            return d;
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Group d) {
+            TextDoc x = c.get(0);
+            return x.isEmpty() ? x : new Group(x);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Hole d) {
+            return d;
+        }
+        @Override public TextDoc visit(List<TextDoc> c, HorizontalAlign d) {
+            return hali(c);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, HorizontalAlignList d) {
+            return hali(c);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, HorizontalConcat d) {
+            return hcat(c);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, HorizontalConcatList d) {
+            return hcat(c);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Indent d) {
+            TextDoc x = c.get(0);
+            if (x.isEmpty() || d.indent <= 0)
+                return x;
+            if (x instanceof Indent)
+                return new Indent(d.indent + ((Indent) x).indent, ((Indent) x).doc);
+            return new Indent(d.indent, x);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Join d) {
+            TextDoc       separator = c.get(0);
+            List<TextDoc> ds        = c.subList(1, c.size());
+            if (separator.isEmpty())
+                return d.vertical ? vali(ds) : hcat(ds);
+            if (ds.size() < 2)
+                return ds.isEmpty() ? empty : ds.get(0);
+            return new Join(new ArrayList<>(ds), separator, d.vertical);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Nest d) {
+            TextDoc x = c.get(0);
+            return x.isEmpty() ? x : new Nest(d.indent, x);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, SoftLine d) {
+            return d;
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Table d) {
+            int                 columns = DocFold.columns(d);
+            List<List<TextDoc>> rows    = new ArrayList<>();
+            for (int r = 0; r < d.rows.size(); r++) {
+                List<TextDoc> row = c.subList(r * columns, r * columns + d.rows.get(r).size());
+                for (TextDoc x : row) {
+                    if (! x.isEmpty()) {
+                        rows.add(new ArrayList<>(row));
+                        break;
+                    }
+                }
+            }
+            return rows.isEmpty() ? empty : new Table(rows);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, Text d) {
+            return d;
+        }
+        @Override public TextDoc visit(List<TextDoc> c, VerticalAlign d) {
+            return vali(c);
+        }
+        @Override public TextDoc visit(List<TextDoc> c, VerticalStream d) {
+            return vali(c);
+        }
+    };
+
+    private static TextDoc hcat(List<TextDoc> c) {
+        List<TextDoc> ds = new ArrayList<>(c.size());
+        for (TextDoc x : c) {
+            if (x instanceof HorizontalConcatList)
+                ds.addAll(((HorizontalConcatList) x).docs);
+            else if (! x.isEmpty())
+                ds.add(x);
+        }
+        ds = mergeTexts(ds);
+        if (ds.size() < 2)
+            return ds.isEmpty() ? empty : ds.get(0);
+        return new HorizontalConcatList(ds);
+    }
+
+    private static TextDoc hali(List<TextDoc> c) {
+        List<TextDoc> ds = new ArrayList<>(c.size());
+        for (TextDoc x : c) {
+            if (x instanceof HorizontalAlignList)
+                ds.addAll(((HorizontalAlignList) x).docs);
+            else if (! x.isEmpty())
+                ds.add(x);
+        }
+        ds = mergeTexts(ds);
+        if (ds.size() < 2)
+            return ds.isEmpty() ? empty : ds.get(0);
+        return new HorizontalAlignList(ds);
+    }
+
+    private static TextDoc vali(List<TextDoc> c) {
+        List<TextDoc> ds = new ArrayList<>(c.size());
+        for (TextDoc x : c) {
+            if (x instanceof VerticalAlign)
+                ds.addAll(((VerticalAlign) x).docs);
+            else if (! x.isEmpty())
+                ds.add(x);
+        }
+        if (ds.size() < 2)
+            return ds.isEmpty() ? empty : ds.get(0);
+        return new VerticalAlign(ds);
+    }
+
+    /**
+     * Merge runs of texts of side by side documents. A padding text that 
+     * follows a non padding text ends a run as it would no longer be
+     * trailing padding once merged.
+     * @param ds documents
+     * @return   documents
+     */
+    private static List<TextDoc> mergeTexts(List<TextDoc> ds) {
+        List<TextDoc> r = new ArrayList<>(ds.size());
+        int           i = 0;
+        while (i < ds.size()) {
+            TextDoc d = ds.get(i++);
+            if (! (d instanceof Text)) {
+                r.add(d);
+                continue;
+            }
+            StringBuilder sb      = null;
+            boolean       padding = TextString.isPadding(((Text) d).chars);
+            while (i < ds.size() && ds.get(i) instanceof Text) {
+                CharSequence t = ((Text) ds.get(i)).chars;
+                boolean      p = TextString.isPadding(t);
+                if (p && ! padding && t.length() > 0)
+                    break;
+                if (sb == null)
+                    sb = new StringBuilder(((Text) d).chars);
+                sb.append(t);
+                padding &= p;
+                i++;
+            }
+            r.add(sb == null ? d : new Text(sb.toString()));
+        }
+        return r;
+    }
+
+}
@@ -0,0 +1,271 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Counters and timings of a render, reported to a {@link RenderListener}.
+ * Nodes are counted when they are laid out or streamed, nodes whose block
+ * is memoized or cached are not visited. Parallel renders only report
+ * phase timings. Statistics are not thread safe.
+ */
+public class RenderStats {
+
+    /**
+     * Render phases.
+     */
+    public enum Phase {
+
+        /**
+         * Groups fitted in the page width, see {@link StringRenderer#withWidth(int)}.
+         */
+        FIT,
+
+        /**
+         * Blocks laid out.
+         */
+        LAYOUT,
+
+        /**
+         * Lines written to the sink.
+         */
+        EMIT
+
+    }
+
+    /**
+     * Node type names, in visitor order.
+     */
+    private static final String[] types = {
+        "Empty", "Fill", "Group", "Hole", "HorizontalAlign", "HorizontalAlignList",
+        "HorizontalConcat", "HorizontalConcatList", "Indent", "Join", "Nest",
+        "SoftLine", "Table", "Text", "VerticalAlign", "VerticalStream"
+    };
+
+    private final long[] nodes = new long[types.length];
+    private final long[] nanos = new long[Phase.values().length];
+    private final long   start = System.nanoTime();
+    private long         elapsed;
+    private int          depth;
+    private long         blockLines;
+    private long         lines;
+    private long         emitted;
+
+    /**
+     * Depth of the document being laid out.
+     */
+    int offset;
+
+    /**
+     * Count the document being laid out, false if it has been counted when
+     * streamed.
+     */
+    boolean roots = true;
+
+    final DocFold.Trace<TextBlock> trace = new DocFold.Trace<TextBlock>() {
+        @Override public void combined(TextDoc doc, int d, TextBlock b) {
+            if (d > 1 || roots)
+                nodes[doc.accept(type)]++;
+            depth       = Math.max(depth, offset + d);
+            blockLines += b.height;
+        }
+    };
+
+    RenderStats() {
+    }
+
+    /**
+     * Count a node streamed by the line streamer.
+     * @param doc   node
+     * @param d     depth
+     */
+    void streamed(TextDoc doc, int d) {
+        nodes[doc.accept(type)]++;
+        depth = Math.max(depth, d);
+    }
+
+    /**
+     * Add the time spent in a phase since some instant.
+     * @param phase phase
+     * @param since {@link System#nanoTime()} at the start of the phase
+     * @return      current {@link System#nanoTime()}
+     */
+    long time(Phase phase, long since) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * Count an emitted line.
+     * @param size number of characters or bytes written
+     */
+    void line(long size) {
+        lines++;
+        emitted += size;
+    }
+
+    /**
+     * End of the render.
+     * @return this
+     */
+    RenderStats finish() {
+        elapsed = System.nanoTime() - start;
+        return this;
+    }
+
+    /**
+     * Number of visited nodes.
+     * @return node count
+     */
+    public long nodes() {
+        long n = 0;
+        for (long x : nodes)
+            n += x;
+        return n;
+    }
+
+    /**
+     * Number of visited nodes by node type.
+     * @return node counts by simple class name, types without nodes are omitted
+     */
+    public Map<String, Long> nodesByType() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        for (int i = 0; i < types.length; i++)
+            if (nodes[i] > 0)
+                m.put(types[i], nodes[i]);
+        return m;
+    }
+
+    /**
+     * Maximum depth of the visited nodes.
+     * @return depth, 1 for the rendered document
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Number of lines of the laid out blocks, the {@link TextLine lines}
+     * built by the layout.
+     * @return number of lines
+     */
+    public long blockLines() {
+        return blockLines;
+    }
+
+    /**
+     * Number of lines written to the sink, 0 for renders to blocks.
+     * @return number of lines
+     */
+    public long lines() {
+        return lines;
+    }
+
+    /**
+     * Number of characters written to the sink, bytes for {@link Utf8Sink UTF-8 sinks}.
+     * @return size of the output, newlines included
+     */
+    public long emitted() {
+        return emitted;
+    }
+
+    /**
+     * Time spent in a phase.
+     * @param phase phase
+     * @return      nanoseconds
+     */
+    public long nanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * Duration of the render.
+     * @return nanoseconds
+     */
+    public long elapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return nodes() + " nodes " + nodesByType()
+             + ", depth " + depth
+             + ", " + blockLines + " block lines, " + lines + " lines, " + emitted + " emitted"
+             + ", fit " + nanos(Phase.FIT) / 1000 + "us, layout " + nanos(Phase.LAYOUT) / 1000 + "us, emit " + nanos(Phase.EMIT) / 1000 + "us"
+             + ", " + elapsed / 1000 + "us";
+    }
+
+    /**
+     * Index of the node type.
+     */
+    private static final TextDoc.PVisitor<Integer> type = new TextDoc.PVisitor<Integer>() {
+        @Override public Integer visit(Empty d) {
+            return 0;
+        }
+        @Override public Integer visit(Fill d) {
+            return 1;
+        }
+        @Override public Integer visit(Group d) {
+            return 2;
+        }
+        @Override public Integer visit(Hole d) {
+            return 3;
+        }
+        @Override public Integer visit(HorizontalAlign d) {
+            return 4;
+        }
+        @Override public Integer visit(HorizontalAlignList d) {
+            return 5;
+        }
+        @Override public Integer visit(HorizontalConcat d) {
+            return 6;
+        }
+        @Override public Integer visit(HorizontalConcatList d) {
+            return 7;
+        }
+        @Override public Integer visit(Indent d) {
+            return 8;
+        }
+        @Override public Integer visit(Join d) {
+            return 9;
+        }
+        @Override public Integer visit(Nest d) {
+            return 10;
+        }
+        @Override public Integer visit(SoftLine d) {
+            return 11;
+        }
+        @Override public Integer visit(Table d) {
+            return 12;
+        }
+        @Override public Integer visit(Text d) {
+            return 13;
+        }
+        @Override public Integer visit(VerticalAlign d) {
+            return 14;
+        }
+        @Override public Integer visit(VerticalStream d) {
+            return 15;
+        }
+    };
+
+}
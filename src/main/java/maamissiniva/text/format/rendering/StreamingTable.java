@@ -0,0 +1,177 @@
+package maamissiniva.text.format.rendering;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import maamissiniva.text.format.TextDoc;
+
+/**
+ * Table whose rows are pulled from an iterator and rendered one at a time,
+ * so that the table is never materialized. As the column widths cannot be
+ * computed from all the rows, they are either fixed, declared or computed
+ * from the first rows. A cell that is wider than its column is not cut,
+ * the next cells of the line are shifted.
+ */
+public class StreamingTable {
+
+    /**
+     * Declared column widths.
+     */
+    private final int[] widths;
+
+    /**
+     * Width of columns past the declared ones.
+     */
+    private final int otherWidth;
+
+    /**
+     * Number of rows that are rendered to compute the column widths, 0 if
+     * widths are not sampled.
+     */
+    private final int sample;
+
+    private final StringRenderer renderer;
+
+    private StreamingTable(int[] widths, int otherWidth, int sample, StringRenderer renderer) {
+        this.widths     = widths;
+        this.otherWidth = otherWidth;
+        this.sample     = sample;
+        this.renderer   = renderer;
+    }
+
+    /**
+     * Table whose columns have the same width.
+     * @param width column width
+     * @return      table
+     */
+    public static StreamingTable fixed(int width) {
+        return new StreamingTable(new int[0], width, 0, new StringRenderer());
+    }
+
+    /**
+     * Table of declared column widths, columns past the declared ones are not padded.
+     * @param widths column widths
+     * @return       table
+     */
+    public static StreamingTable declared(int... widths) {
+        return new StreamingTable(widths.clone(), 0, 0, new StringRenderer());
+    }
+
+    /**
+     * Table whose column widths are the maximum widths of the cells of the
+     * first rows. The sampled rows are kept until the widths are known.
+     * Columns that do not appear in the sample are not padded.
+     * @param rows number of sampled rows
+     * @return     table
+     */
+    public static StreamingTable sampled(int rows) {
+        return new StreamingTable(new int[0], 0, Math.max(1, rows), new StringRenderer());
+    }
+
+    /**
+     * Table that renders cells with the given renderer.
+     * @param renderer cell renderer
+     * @return         table
+     */
+    public StreamingTable withRenderer(StringRenderer renderer) {
+        return new StreamingTable(widths, otherWidth, sample, renderer);
+    }
+
+    /**
+     * Lines of the table, rows are pulled from the iterator as lines are consumed.
+     * @param rows rows of cells
+     * @return     lines
+     */
+    public Iterator<TextLine> lines(Iterator<? extends List<TextDoc>> rows) {
+        return new Iterator<TextLine>() {
+
+            final Deque<List<TextBlock>> sampled = new ArrayDeque<>();
+            final TextLine.Builder       lb      = new TextLine.Builder();
+            int[]           ws;
+            List<TextBlock> row;
+            int             height;
+            int             line;
+
+            @Override
+            public boolean hasNext() {
+                if (ws == null)
+                    ws = sampleWidths();
+                while (row == null || line >= height) {
+                    if (! sampled.isEmpty()) {
+                        row = sampled.pop();
+                    } else if (rows.hasNext()) {
+                        row = cells(rows.next());
+                    } else {
+                        row = null;
+                        return false;
+                    }
+                    height = 0;
+                    for (TextBlock b : row)
+                        height = Math.max(height, b.height);
+                    line = 0;
+                    if (row.size() > ws.length && otherWidth > 0) {
+                        int columns = ws.length;
+                        ws = Arrays.copyOf(ws, row.size());
+                        Arrays.fill(ws, columns, ws.length, otherWidth);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public TextLine next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                return Blocks.row(lb, ws, row, line++);
+            }
+
+            int[] sampleWidths() {
+                if (sample == 0)
+                    return widths;
+                int[] w = new int[0];
+                while (sampled.size() < sample && rows.hasNext()) {
+                    List<TextBlock> r = cells(rows.next());
+                    if (r.size() > w.length)
+                        w = Arrays.copyOf(w, r.size());
+                    for (int c = 0; c < r.size(); c++)
+                        w[c] = Math.max(w[c], r.get(c).width);
+                    sampled.add(r);
+                }
+                return w;
+            }
+
+            List<TextBlock> cells(List<TextDoc> docs) {
+                List<TextBlock> r = new ArrayList<>(docs.size());
+                for (TextDoc d : docs)
+                    r.add(renderer.render(d));
+                return r;
+            }
+
+        };
+    }
+
+    /**
+     * Render the table lines to a sink, lines are separated by '\n'.
+     * @param rows rows of cells
+     * @param out  sink
+     * @throws IOException if the sink fails
+     */
+    public void write(Iterator<? extends List<TextDoc>> rows, Appendable out) throws IOException {
+        Iterator<TextLine> lines  = lines(rows);
+        StringBuilder      buffer = new StringBuilder();
+        while (lines.hasNext()) {
+            buffer.setLength(0);
+            StringRenderer.render(lines.next(), buffer);
+            if (lines.hasNext())
+                buffer.append('\n');
+            out.append(buffer);
+        }
+    }
+
+}
@@ -1,30 +1,46 @@
 package maamissiniva.text.format.rendering;
 
-import static maamissiniva.text.format.rendering.TextLine.tl;
-import static maamissiniva.text.format.rendering.TextLine.tlPad;
-import static maamissiniva.text.format.rendering.TextLine.tlString;
 import static maamissiniva.util.Iterables.all;
-import static maamissiniva.util.Iterables.flatMap;
-import static maamissiniva.util.Iterables.foldL;
 import static maamissiniva.util.Iterables.it;
-import static maamissiniva.util.Iterables.map;
-import static maamissiniva.util.Iterables.range;
 import static maamissiniva.util.Iterables.repeat;
-import static maamissiniva.util.Iterables.take;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import maamissiniva.text.format.TextDoc;
 import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
 import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
 import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
 import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
 import maamissiniva.text.format.TextDoc.PVisitor;
+import maamissiniva.text.format.TextDoc.SoftLine;
 import maamissiniva.text.format.TextDoc.Table;
 import maamissiniva.text.format.TextDoc.Text;
 import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
 import static maamissiniva.text.format.TextDocShortcuts.empty;
 
 /**
@@ -37,14 +53,177 @@ public class StringRenderer {
      */
     public static final String spaces = repeat(" ").take(1024).asString();
 
+    /**
+     * Memoize blocks by document instance during a render.
+     */
+    private boolean memoize;
+
+    /**
+     * Blocks cached across renders, null if none.
+     */
+    private RenderCache cache;
+
+    /**
+     * Minimum number of children (or rows) of a list node (or table)
+     * rendered in parallel.
+     */
+    private int parallelThreshold = 256;
+
+    /**
+     * Page width that groups are fitted in, see {@link BestFit}.
+     */
+    private int width = Integer.MAX_VALUE;
+
+    /**
+     * Listener of the renders, null if renders are not instrumented.
+     */
+    private RenderListener listener;
+
+    /**
+     * Cancellation of the renders of an asynchronous render, null if renders
+     * are not cancellable.
+     */
+    private Cancellation cancellation;
+
+    public StringRenderer() {
+    }
+
+    private StringRenderer(StringRenderer r) {
+        this.memoize           = r.memoize;
+        this.cache             = r.cache;
+        this.parallelThreshold = r.parallelThreshold;
+        this.width             = r.width;
+        this.listener          = r.listener;
+        this.cancellation      = r.cancellation;
+    }
+
+    /**
+     * Renderer that renders shared document instances once per render.
+     * @return new renderer
+     */
+    public StringRenderer memoizing() {
+        StringRenderer r = new StringRenderer(this);
+        r.memoize = true;
+        return r;
+    }
+
+    /**
+     * Renderer that looks up and stores blocks in a cache that lives across
+     * renders. The cache supersedes per render memoization.
+     * @param cache block cache, null for no cache
+     * @return      new renderer
+     */
+    public StringRenderer withCache(RenderCache cache) {
+        StringRenderer r = new StringRenderer(this);
+        r.cache = cache;
+        return r;
+    }
+
+    /**
+     * Renderer whose parallel renders split list nodes and tables that 
+     * have at least the given number of children or rows.
+     * @param threshold minimum number of children
+     * @return          new renderer
+     */
+    public StringRenderer withParallelThreshold(int threshold) {
+        StringRenderer r = new StringRenderer(this);
+        r.parallelThreshold = threshold;
+        return r;
+    }
+
+    /**
+     * Renderer that breaks the soft lines of the {@link TextDoc.Group groups}
+     * that do not fit in a page width. Without a page width groups are flat.
+     * @param width page width
+     * @return      new renderer
+     */
+    public StringRenderer withWidth(int width) {
+        StringRenderer r = new StringRenderer(this);
+        r.width = width;
+        return r;
+    }
+
+    /**
+     * Renderer that reports the statistics of its renders (text, streams,
+     * blocks) to a listener.
+     * @param listener listener, null to stop instrumenting renders
+     * @return         new renderer
+     */
+    public StringRenderer withListener(RenderListener listener) {
+        StringRenderer r = new StringRenderer(this);
+        r.listener = listener;
+        return r;
+    }
+
+    /**
+     * Does the renderer fit groups in a page width.
+     * @return true if the renderer has a page width
+     */
+    boolean hasWidth() {
+        return width != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Document laid out in the page width.
+     * @param doc document
+     * @return    document without groups if there is a page width
+     */
+    TextDoc fit(TextDoc doc) {
+        return width == Integer.MAX_VALUE ? doc : BestFit.fit(doc, width, cancellation);
+    }
+
+    /**
+     * Document laid out in the page width, timed.
+     * @param doc   document
+     * @param stats render statistics, null if the render is not instrumented
+     * @return      document without groups if there is a page width
+     */
+    private TextDoc fit(TextDoc doc, RenderStats stats) {
+        if (stats == null || width == Integer.MAX_VALUE)
+            return fit(doc);
+        long    start = System.nanoTime();
+        TextDoc d     = fit(doc);
+        stats.time(RenderStats.Phase.FIT, start);
+        return d;
+    }
+
+    /**
+     * Memo of a render.
+     * @return memo, null if blocks are not memoized
+     */
+    DocFold.Memo<TextBlock> memo() {
+        if (cache != null)
+            return cache;
+        if (memoize)
+            return DocFold.identityMemo();
+        return null;
+    }
+
+    /**
+     * Remove empty documents.
+     * @param doc document
+     * @return    document without empty sub documents
+     */
     public static TextDoc prepare(TextDoc doc) {
-        return doc.accept(new TextDoc.PVisitor<TextDoc>() {
-            @Override public TextDoc visit(Empty d) {
+        return DocFold.fold(doc, new TextDoc.FVisitor<List<TextDoc>, TextDoc>() {
+            @Override public TextDoc visit(List<TextDoc> c, Empty d) {
                 return d;
             }
-            @Override public TextDoc visit(HorizontalAlign d) {
-                TextDoc left  = prepare(d.left);
-                TextDoc right = prepare(d.right);
+            @Override public TextDoc visit(List<TextDoc> c, Fill d) {
+                return d;
+            }
+            @Override public TextDoc visit(List<TextDoc> c, Group d) {
+                TextDoc p = c.get(0);
+                if (p instanceof TextDoc.Empty)
+                    return empty;
+                return new Group(p);
+            }
+            @Override public TextDoc visit(List<TextDoc> c, Hole d) {
+                return d;
+            }
+            @Override public TextDoc visit(List<TextDoc> c, HorizontalAlign d) {
+                TextDoc left  = c.get(0);
+                TextDoc right = c.get(1);
                 if (left.isEmpty())
                     return right;
                 else if (right.isEmpty())
@@ -52,9 +231,15 @@ public class StringRenderer {
                 else
                     return new HorizontalAlign(left, right);
             }
-            @Override public TextDoc visit(HorizontalConcat d) {
-                TextDoc left  = prepare(d.left);
-                TextDoc right = prepare(d.right);
+            @Override public TextDoc visit(List<TextDoc> c, HorizontalAlignList d) {
+                List<TextDoc> ds = nonEmpty(c);
+                if (ds.size() < 2)
+                    return ds.isEmpty() ? empty : ds.get(0);
+                return new HorizontalAlignList(ds);
+            }
+            @Override public TextDoc visit(List<TextDoc> c, HorizontalConcat d) {
+                TextDoc left  = c.get(0);
+                TextDoc right = c.get(1);
                 if (left.isEmpty())
                     return right;
                 else if (right.isEmpty())
@@ -62,147 +247,733 @@ public class StringRenderer {
                 else
                     return new HorizontalConcat(left, right);
             }
-            @Override public TextDoc visit(Indent d) {
-                TextDoc p = prepare(d.doc);
+            @Override public TextDoc visit(List<TextDoc> c, HorizontalConcatList d) {
+                List<TextDoc> ds = nonEmpty(c);
+                if (ds.size() < 2)
+                    return ds.isEmpty() ? empty : ds.get(0);
+                return new HorizontalConcatList(ds);
+            }
+            @Override public TextDoc visit(List<TextDoc> c, Indent d) {
+                TextDoc p = c.get(0);
                 if (p instanceof TextDoc.Empty)
                     return empty;
                 return new Indent(d.indent, p);
             }
-            @Override public TextDoc visit(Table d) {
-                List<List<TextDoc>> rows =
-                    map(d.rows, x -> map(x, y -> prepare(y)).asList())
-                    .filter(x -> ! all(x, y -> y.isEmpty()))
-                    .asList();
+            @Override public TextDoc visit(List<TextDoc> c, Join d) {
+                TextDoc       separator = c.get(0);
+                List<TextDoc> ds        = c.subList(1, c.size());
+                if (separator.isEmpty()) {
+                    ds = nonEmpty(ds);
+                    if (ds.size() < 2)
+                        return ds.isEmpty() ? empty : ds.get(0);
+                    return d.vertical ? new VerticalAlign(ds) : new HorizontalConcatList(ds);
+                }
+                if (ds.size() < 2)
+                    return ds.isEmpty() ? empty : ds.get(0);
+                return new Join(new ArrayList<>(ds), separator, d.vertical);
+            }
+            @Override public TextDoc visit(List<TextDoc> c, Nest d) {
+                TextDoc p = c.get(0);
+                if (p instanceof TextDoc.Empty)
+                    return empty;
+                return new Nest(d.indent, p);
+            }
+            @Override public TextDoc visit(List<TextDoc> c, SoftLine d) {
+                return d;
+            }
+            @Override public TextDoc visit(List<TextDoc> c, Table d) {
+                List<List<TextDoc>> rows = new ArrayList<>();
+                int columns = DocFold.columns(d);
+                for (int r = 0; r < d.rows.size(); r++) {
+                    List<TextDoc> row = c.subList(r * columns, r * columns + d.rows.get(r).size());
+                    if (! all(row, y -> y.isEmpty()))
+                        rows.add(new ArrayList<>(row));
+                }
                 return new Table(rows);
             }
-            @Override public TextDoc visit(Text d) {
+            @Override public TextDoc visit(List<TextDoc> c, Text d) {
                 return d;
             }
-            @Override public TextDoc visit(VerticalAlign d) {
-                List<TextDoc> ds =
-                    map(d.docs, x -> prepare(x))
-                    .filter(x -> ! (x instanceof TextDoc.Empty))
-                    .asList();
+            @Override public TextDoc visit(List<TextDoc> c, VerticalAlign d) {
+                List<TextDoc> ds = nonEmpty(c);
                 if (ds.isEmpty())
                     return empty;
                 return new VerticalAlign(ds);
             }
+            @Override public TextDoc visit(List<TextDoc> c, VerticalStream d) {
+                List<TextDoc> ds = nonEmpty(c);
+                if (ds.isEmpty())
+                    return empty;
+                return new VerticalAlign(ds);
+            }
+            List<TextDoc> nonEmpty(List<TextDoc> c) {
+                return it(c).filter(x -> ! (x instanceof TextDoc.Empty)).asList();
+            }
         });
     }
     
     public static String render(TextLine line) {
-        List<TextString> strings = line.leaves().asList();
-        while (! strings.isEmpty() && strings.get(strings.size() - 1).isPadding())
-            strings.remove(strings.size() - 1);
-        StringBuilder sb = new StringBuilder();
-        for (int i=0; i<strings.size(); i++) {
-            TextString s = strings.get(i);
-            sb.append(s.value);
-            int width = s.width - s.value.length();
-            while (width > spaces.length()) {
-                width -= spaces.length();
-                sb.append(spaces);
+        StringBuilder sb = new StringBuilder(line.width);
+        render(line, 0, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Append a line to a buffer without trailing padding.
+     * @param line line
+     * @param sb   buffer
+     */
+    public static void render(TextLine line, StringBuilder sb) {
+        render(line, 0, sb);
+    }
+
+    /**
+     * Append an indented line to a buffer in a single pass over the segments:
+     * padding is only written when some string follows and the buffer is cut
+     * after the last string that is not padding.
+     * @param line   line
+     * @param indent indentation, not written if the line is blank
+     * @param sb     buffer
+     */
+    static void render(TextLine line, int indent, StringBuilder sb) {
+        int end     = sb.length();
+        int pending = indent + line.lead;
+        for (int i = 0; i < line.segments(); i++) {
+            CharSequence s = line.segment(i);
+            if (s == null) {
+                pending += line.segmentWidth(i);
+            } else {
+                appendSpaces(sb, pending);
+                pending = 0;
+                sb.append(s);
+                if (! TextString.isPadding(s))
+                    end = sb.length();
             }
-            sb.append(spaces, 0, width);
         }
-        return sb.toString();
+        sb.setLength(end);
+    }
+
+    /**
+     * Error of a hole that is rendered outside of a template.
+     * @param d hole
+     * @return  exception
+     */
+    static IllegalStateException unfilled(Hole d) {
+        return new IllegalStateException("hole " + d.name + " is not filled, holes are filled by templates");
+    }
+
+    /**
+     * Append spaces.
+     * @param sb    buffer
+     * @param count number of spaces
+     */
+    static void appendSpaces(StringBuilder sb, int count) {
+        while (count > spaces.length()) {
+            count -= spaces.length();
+            sb.append(spaces);
+        }
+        sb.append(spaces, 0, count);
     }
           
     public static String getText(TextDoc doc) {
-        TextBlock b = new StringRenderer().render(doc);
-        return map(b.lines, x -> render(x))
-            .intercalate("\n")
-            .asString();
+        return new StringRenderer().text(doc);
     }
-    
-    public TextBlock render(TextDoc doc) {
-        return doc.accept(new TextDoc.PVisitor<TextBlock>() {
-            @Override public TextBlock visit(Empty d) {
-                return TextBlock.empty;
-            }
-            @Override public TextBlock visit(HorizontalAlign d) {
-                TextBlock left  = render(d.left);
-                TextBlock right = render(d.right);
-                if (left.height == 0)
-                    return right;
-                if (right.height == 0)
-                    return left;
-                int lWidth = left.width;
-                int rWidth = right.width;
-                int height = Math.max(left.height, right.height);
-                List<TextLine> lines = new ArrayList<>();
-                for (int i=0; i<height; i++) {
-                    if (i >= left.lines.size())
-                        lines.add(tl(lWidth, right.lines.get(i).padTo(rWidth)));
-                    else if (i >= right.lines.size())
-                        lines.add(tl(left.lines.get(i).padTo(lWidth), rWidth));
-                    else
-                        lines.add(tl(left.lines.get(i).padTo(lWidth), right.lines.get(i).padTo(rWidth)));
-                }
-                return new TextBlock(lines);
+
+    /**
+     * Text of a document for {@link Object#toString()}: holes are rendered
+     * as their {name} placeholder instead of throwing, vertical streams are
+     * rendered as a {@code <stream>} placeholder and are not pulled, so that
+     * the sources that are streamed once are left for the render.
+     * @param doc document
+     * @return    text
+     */
+    public static String describe(TextDoc doc) {
+        return getText(DocFold.fold(doc, DocFold.unstreamed, described, null));
+    }
+
+    /**
+     * Block lines separated by '\n'.
+     * @param b block
+     * @return  text
+     */
+    public static String getText(TextBlock b) {
+        StringBuilder sb    = new StringBuilder();
+        boolean       first = true;
+        for (int r = 0; r < b.runs(); r++) {
+            for (TextLine l : b.run(r)) {
+                if (! first)
+                    sb.append('\n');
+                first = false;
+                render(l, b.offset(r), sb);
             }
-            @Override public TextBlock visit(HorizontalConcat d) {
-                TextBlock left  = render(d.left);
-                TextBlock right = render(d.right);
-                if (left.height == 0)
-                    return right;
-                if (right.height == 0)
-                    return left;
-                int lHeight = left.height;
-                int rHeight = right.height;
-                int lWidth  = left.width;
-                int rWidth  = right.width;
-                int width   = lWidth + rWidth;
-                List<TextLine> lines = new ArrayList<>();
-                for (int i = 0; i < lHeight - 1; i++) 
-                    lines.add(left.lines.get(i).padTo(width)); 
-                    lines.add(tl(left.lines.get(lHeight - 1).padTo(lWidth), right.lines.get(0).padTo(rWidth)));
-                for (int i = 1; i < rHeight; i++) 
-                    lines.add(tl(lWidth, right.lines.get(i).padTo(rWidth)));
-                return new TextBlock(lines);
-            }
-            @Override public TextBlock visit(Indent d) {
-                TextBlock b = render(d.doc);
-                return new TextBlock(map(b.lines, x -> tl(d.indent, x)).asList());
-            }
-            @Override public TextBlock visit(Table d) {
-                int columns = foldL(d.rows, 0, (x,y) -> Math.max(x, y.size()));
-                List<List<TextBlock>> blocks = 
-                    map(d.rows, 
-                        r -> take(it(r).concat(repeat(empty)).map(e -> render(e)), columns).asList()).asList();
-                List<Integer> columnSizes = 
-                    range(0, columns-1).map(i -> foldL(range(0, blocks.size()-1), 0, (x,j) -> Math.max(x, blocks.get(j).get(i).width))).asList();
-                List<TextLine> lines = new ArrayList<>();
-                for (List<TextBlock> bs : blocks) {
-                    int height = foldL(bs, 0, (x,y) -> Math.max(x, y.height));
-                    for (int l = 0; l <height; l++) {
-                        TextLine tl = TextLine.tlString("");
-                        for (int c = 0; c<columns; c++) {
-                            int cWidth = columnSizes.get(c);
-                            if (l < bs.get(c).height)
-                                tl = tl(tl, bs.get(c).lines.get(l).padTo(cWidth));
-                            else
-                                tl = tl(tl, tlPad(cWidth));
-//                            tl = tl(tl, "/* " + cWidth + " */");
-                        }
-                        lines.add(tl);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Render a document in a string using a fork/join pool.
+     * @param doc  document
+     * @param pool pool
+     * @return     text, same as {@link #getText(TextDoc)}
+     * @see #render(TextDoc, ForkJoinPool)
+     */
+    public static String renderParallel(TextDoc doc, ForkJoinPool pool) {
+        return getText(new StringRenderer().render(doc, pool));
+    }
+
+    /**
+     * Render a document in a string.
+     * @param doc document to render
+     * @return    text
+     */
+    public String text(TextDoc doc) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            write(doc, sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Render a range of lines of a document, the lines of the text between
+     * two line indices. Documents that end before the range are skipped
+     * using their cached heights and the render stops at the end of the
+     * range: only the documents that intersect the range are rendered.
+     * Vertical alignments, indentations and vertical joins are walked, the
+     * rows of tables are skipped, vertical streams are pulled up to the end
+     * of the range.
+     * @param doc  document to render
+     * @param from index of the first line
+     * @param to   index after the last line
+     * @return     lines, fewer than asked for if the document has fewer
+     *             lines
+     * @throws IllegalArgumentException if from is negative or greater than to
+     */
+    public List<String> renderLines(TextDoc doc, int from, int to) {
+        if (from < 0 || to < from)
+            throw new IllegalArgumentException("bad line range " + from + ".." + to);
+        return new LineRange(this).lines(fit(doc), from, to);
+    }
+
+    /**
+     * Render a document in a string on an executor. Cancelling the future
+     * stops the render: the render checks for cancellation every thousand 
+     * nodes or lines and releases its thread and blocks. The render does not
+     * block, so it can run on virtual threads.
+     * @param doc      document to render
+     * @param executor executor
+     * @return         future text
+     */
+    public CompletableFuture<String> renderAsync(TextDoc doc, Executor executor) {
+        return renderAsync(doc, executor, false, 0);
+    }
+
+    /**
+     * Render a document in a string on an executor, with a deadline. The
+     * future is completed with a {@link TimeoutException} at the deadline,
+     * even if the render still waits for a thread, and the render stops.
+     * Fitting the document in the page width stops as well.
+     * @param doc      document to render
+     * @param executor executor
+     * @param timeout  time before the deadline
+     * @param unit     unit of the timeout
+     * @return         future text
+     * @see #renderAsync(TextDoc, Executor)
+     */
+    public CompletableFuture<String> renderAsync(TextDoc doc, Executor executor, long timeout, TimeUnit unit) {
+        return renderAsync(doc, executor, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private CompletableFuture<String> renderAsync(TextDoc doc, Executor executor, boolean timed, long deadline) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        StringRenderer            r      = new StringRenderer(this);
+        r.cancellation = new Cancellation(future, timed, deadline);
+        r.cancellation.schedule();
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if (r.cancellation.expired())
+                            throw new CancellationException();
+                        if (! future.isDone())
+                            future.complete(r.text(doc));
+                    } catch (CancellationException e) {
+                        if (r.cancellation.expired())
+                            r.cancellation.timeout();
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
                     }
                 }
-                return new TextBlock(lines);
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Render a document to a sink.
+     * @param doc document to render
+     * @param out sink
+     * @throws IOException if the sink fails
+     * @see #render(TextDoc, Appendable)
+     */
+    public void write(TextDoc doc, Appendable out) throws IOException {
+        RenderStats stats = listener == null ? null : new RenderStats();
+        try {
+            TextDoc d = fit(doc, stats);
+            if (cancellation != null)
+                cancellation.checkNow();
+            new LineStreamer(this, out, stats).stream(d);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (stats != null)
+            listener.rendered(stats.finish());
+    }
+
+    /**
+     * Render a document to a sink. Lines are sent to the sink as soon
+     * as they are rendered: vertical alignments, vertical streams and 
+     * indentations are streamed, other documents are rendered as blocks. Lines are separated
+     * by '\n', there is no trailing newline. 
+     * @param doc document to render
+     * @param out sink
+     * @throws IOException if the sink fails
+     */
+    public static void render(TextDoc doc, Appendable out) throws IOException {
+        new StringRenderer().write(doc, out);
+    }
+
+    /**
+     * Render a document to a writer that is flushed once the document is rendered.
+     * @param doc document to render
+     * @param out writer
+     * @throws IOException if the writer fails
+     * @see #render(TextDoc, Appendable)
+     */
+    public static void render(TextDoc doc, Writer out) throws IOException {
+        render(doc, (Appendable) out);
+        out.flush();
+    }
+
+    /**
+     * Render a document in UTF-8 to an output stream that is flushed once
+     * the document is rendered.
+     * @param doc document to render
+     * @param out output stream
+     * @throws IOException if the stream fails
+     * @see Utf8Sink#of(OutputStream)
+     */
+    public static void renderUtf8(TextDoc doc, OutputStream out) throws IOException {
+        Utf8Sink sink = Utf8Sink.of(out);
+        render(doc, sink);
+        sink.flush();
+    }
+
+    /**
+     * Render a document in UTF-8 to a channel, usually a file channel.
+     * @param doc document to render
+     * @param out channel
+     * @throws IOException if the channel fails
+     * @see Utf8Sink#of(GatheringByteChannel)
+     */
+    public static void renderUtf8(TextDoc doc, GatheringByteChannel out) throws IOException {
+        Utf8Sink sink = Utf8Sink.of(out);
+        render(doc, sink);
+        sink.flush();
+    }
+
+    /**
+     * Streams lines of a document, the visitor argument is the indentation.
+     * Padding to the width of a vertical alignment is not rendered as it is 
+     * trailing padding. Vertical alignments and indentations are pushed on
+     * an explicit stack. Documents of vertical streams are pulled one at a
+     * time and their blocks are not memoized so that they can be collected
+     * once streamed.
+     */
+    private static class LineStreamer implements TextDoc.FVisitor<Integer, Void> {
+
+        /**
+         * Documents left to stream at some indentation.
+         */
+        private static class Frame {
+
+            final Iterator<? extends TextDoc> docs;
+            final int                         indent;
+            final DocFold.Memo<TextBlock>     memo;
+
+            Frame(Iterator<? extends TextDoc> docs, int indent, DocFold.Memo<TextBlock> memo) {
+                this.docs   = docs;
+                this.indent = indent;
+                this.memo   = memo;
             }
-            @Override public TextBlock visit(Text d) {
-                return new TextBlock(Arrays.asList(tlString(d.text)));
+
+        }
+
+        private final Appendable              out;
+        private final StringRenderer          renderer;
+        private final RenderStats             stats;
+        private DocFold.Memo<TextBlock>       memo;
+        private final Deque<Frame>            stack  = new ArrayDeque<>();
+        private final StringBuilder           buffer = new StringBuilder();
+        private char[]                        chars  = new char[256];
+        private boolean                       first  = true;
+
+        LineStreamer(StringRenderer renderer, Appendable out, RenderStats stats) {
+            this.renderer = renderer;
+            this.out      = out;
+            this.stats    = stats;
+            this.memo     = renderer.memo();
+        }
+
+        void stream(TextDoc doc) {
+            stack.push(new Frame(Collections.singletonList(doc).iterator(), 0, memo));
+            while (! stack.isEmpty()) {
+                Frame f = stack.peek();
+                if (f.docs.hasNext()) {
+                    memo = f.memo;
+                    TextDoc d = f.docs.next();
+                    if (renderer.cancellation != null)
+                        renderer.cancellation.check();
+                    if (stats != null)
+                        stats.streamed(d, stack.size());
+                    d.accept(f.indent, this);
+                } else
+                    stack.pop();
             }
-            @Override public TextBlock visit(VerticalAlign d) {
-                List<TextBlock> bs = map(d.docs, x -> render(x)).asList();
-                int width = foldL(bs, 0, (x,y) -> Math.max(x, y.width));
-                List<TextLine> lines = 
-                    flatMap(bs, x -> x.lines)
-                    .map(x -> tl(x, width - x.width))
-                    .asList();
-                return new TextBlock(lines);
+        }
+
+        private Void block(int indent, TextDoc d) {
+            TextBlock b = layout(d, true);
+            for (int r = 0; r < b.runs(); r++)
+                for (TextLine l : b.run(r))
+                    line(indent + b.offset(r), l);
+            return null;
+        }
+
+        /**
+         * Lay out a document.
+         * @param d        document
+         * @param streamed true for the document being streamed, false for
+         *                 one of its children
+         * @return         block
+         */
+        private TextBlock layout(TextDoc d, boolean streamed) {
+            if (stats == null)
+                return renderer.render(d, memo);
+            stats.offset = streamed ? stack.size() - 1 : stack.size();
+            stats.roots  = ! streamed;
+            return renderer.render(d, memo, stats);
+        }
+
+        /**
+         * Emit a line, counted and timed if the render is instrumented.
+         * @param indent indentation
+         * @param l      line
+         */
+        private void line(int indent, TextLine l) {
+            if (renderer.cancellation != null)
+                renderer.cancellation.check();
+            if (stats == null) {
+                emit(indent, l);
+                return;
             }
-        });
+            long    start   = System.nanoTime();
+            long    size    = size();
+            boolean newline = ! first;
+            emit(indent, l);
+            stats.line(size < 0 ? buffer.length() + (newline ? 1 : 0) : size() - size);
+            stats.time(RenderStats.Phase.EMIT, start);
+        }
+
+        /**
+         * Size of the output.
+         * @return number of characters of a string builder, bytes of a
+         *         UTF-8 sink, -1 for other sinks
+         */
+        private long size() {
+            if (out instanceof StringBuilder)
+                return ((StringBuilder) out).length();
+            if (out instanceof Utf8Sink)
+                return ((Utf8Sink) out).written();
+            return -1;
+        }
+
+        /**
+         * Emit a line. Lines are rendered straight into string builder and 
+         * UTF-8 sinks, other sinks are given a reused buffer (a char array 
+         * for writers).
+         * @param indent indentation
+         * @param l      line
+         */
+        private void emit(int indent, TextLine l) {
+            try {
+                if (first)
+                    first = false;
+                else
+                    out.append('\n');
+                if (out instanceof StringBuilder) {
+                    render(l, indent, (StringBuilder) out);
+                    return;
+                }
+                if (out instanceof Utf8Sink) {
+                    ((Utf8Sink) out).line(l, indent);
+                    return;
+                }
+                buffer.setLength(0);
+                render(l, indent, buffer);
+                int length = buffer.length();
+                if (out instanceof Writer) {
+                    if (chars.length < length)
+                        chars = new char[Math.max(length, 2 * chars.length)];
+                    buffer.getChars(0, length, chars, 0);
+                    ((Writer) out).write(chars, 0, length);
+                } else {
+                    out.append(buffer, 0, length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override public Void visit(Integer a, Empty d) {
+            return null;
+        }
+        @Override public Void visit(Integer a, Fill d) {
+            Wrapping w = Wrapping.of(d.text, d.width, d.optimal);
+            for (int i = 0; i < w.height(); i++)
+                line(a, TextLine.tlString(w.line(i), w.width(i)));
+            return null;
+        }
+        @Override public Void visit(Integer a, Group d) {
+            stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a, memo));
+            return null;
+        }
+        @Override public Void visit(Integer a, Hole d) {
+            throw unfilled(d);
+        }
+        @Override public Void visit(Integer a, HorizontalAlign d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, HorizontalAlignList d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, HorizontalConcat d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, HorizontalConcatList d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, Indent d) {
+            stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a + Math.max(0, d.indent), memo));
+            return null;
+        }
+        @Override public Void visit(Integer a, Join d) {
+            // Vertical joins are streamed item by item, the last document is streamed
+            if (! d.vertical || d.docs.isEmpty())
+                return block(a, d);
+            TextBlock separator = layout(d.separator, false);
+            for (TextDoc x : d.docs.subList(0, d.docs.size() - 1))
+                for (TextLine l : Blocks.hcat(layout(x, false), separator).lines)
+                    line(a, l);
+            stack.push(new Frame(Collections.singletonList(d.docs.get(d.docs.size() - 1)).iterator(), a, memo));
+            return null;
+        }
+        @Override public Void visit(Integer a, Nest d) {
+            stack.push(new Frame(Collections.singletonList(d.doc).iterator(), a, memo));
+            return null;
+        }
+        @Override public Void visit(Integer a, SoftLine d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, Table d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, Text d) {
+            return block(a, d);
+        }
+        @Override public Void visit(Integer a, VerticalAlign d) {
+            stack.push(new Frame(d.docs.iterator(), a, memo));
+            return null;
+        }
+        @Override public Void visit(Integer a, VerticalStream d) {
+            stack.push(new Frame(d.docs.iterator(), a, null));
+            return null;
+        }
+
     }
     
+    /**
+     * Render a document as a block. Rendering does not recurse, deep
+     * documents are rendered in bounded stack space.
+     * @param doc document
+     * @return    block
+     */
+    public TextBlock render(TextDoc doc) {
+        if (listener == null)
+            return render(fit(doc), memo());
+        RenderStats stats = new RenderStats();
+        TextBlock   b     = render(fit(doc, stats), memo(), stats);
+        listener.rendered(stats.finish());
+        return b;
+    }
+
+    /**
+     * Render a document as a block using a fork/join pool. The children of
+     * large list nodes and the rows of large tables are rendered
+     * in parallel tasks.
+     * @param doc  document
+     * @param pool pool
+     * @return     block, same as {@link #render(TextDoc)}
+     * @see #withParallelThreshold(int)
+     */
+    public TextBlock render(TextDoc doc, ForkJoinPool pool) {
+        if (listener == null)
+            return new ParallelRenderer(this, parallelThreshold).render(fit(doc), pool);
+        RenderStats stats = new RenderStats();
+        TextDoc     d     = fit(doc, stats);
+        long        start = System.nanoTime();
+        TextBlock   b     = new ParallelRenderer(this, parallelThreshold).render(d, pool);
+        stats.time(RenderStats.Phase.LAYOUT, start);
+        listener.rendered(stats.finish());
+        return b;
+    }
+
+    /**
+     * Render a document as a block.
+     * @param doc  document
+     * @param memo memoized blocks, null for no memoization
+     * @return     block
+     */
+    TextBlock render(TextDoc doc, DocFold.Memo<TextBlock> memo) {
+        return DocFold.fold(doc, DocFold.children, combine, memo, cancellation);
+    }
+
+    /**
+     * Render a document as a block, timed and traced.
+     * @param doc   document
+     * @param memo  memoized blocks, null for no memoization
+     * @param stats render statistics
+     * @return      block
+     */
+    private TextBlock render(TextDoc doc, DocFold.Memo<TextBlock> memo, RenderStats stats) {
+        long      start = System.nanoTime();
+        TextBlock b     = DocFold.fold(doc, DocFold.children, combine, memo, cancellation == null ? stats.trace : cancellation.then(stats.trace));
+        stats.time(RenderStats.Phase.LAYOUT, start);
+        return b;
+    }
+
+    /**
+     * Layout rules of {@link #describe(TextDoc)}.
+     */
+    private static final TextDoc.FVisitor<List<TextBlock>, TextBlock> described =
+        new TextDoc.FVisitor<List<TextBlock>, TextBlock>() {
+            @Override public TextBlock visit(List<TextBlock> c, Empty d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Fill d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Group d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Hole d) {
+                return Blocks.text(d.toString());
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalAlign d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalAlignList d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalConcat d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalConcatList d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Indent d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Join d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Nest d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, SoftLine d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Table d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Text d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, VerticalAlign d) {
+                return combine.visit(c, d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, VerticalStream d) {
+                return Blocks.text("<stream>");
+            }
+        };
+
+    /**
+     * Layout rules.
+     */
+    static final TextDoc.FVisitor<List<TextBlock>, TextBlock> combine = 
+        new TextDoc.FVisitor<List<TextBlock>, TextBlock>() {
+            @Override public TextBlock visit(List<TextBlock> c, Empty d) {
+                return TextBlock.empty;
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Fill d) {
+                return Blocks.fill(Wrapping.of(d.text, d.width, d.optimal));
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Group d) {
+                return c.get(0);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Hole d) {
+                throw unfilled(d);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalAlign d) {
+                return Blocks.hali(c.get(0), c.get(1));
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalAlignList d) {
+                return Blocks.hali(c);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalConcat d) {
+                return Blocks.hcat(c.get(0), c.get(1));
+            }
+            @Override public TextBlock visit(List<TextBlock> c, HorizontalConcatList d) {
+                return Blocks.hcat(c);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Indent d) {
+                return Blocks.indent(d.indent, c.get(0));
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Join d) {
+                return Blocks.join(c.get(0), c.subList(1, c.size()), d.vertical);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Nest d) {
+                return c.get(0);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, SoftLine d) {
+                return Blocks.text(d.flat);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Table d) {
+                return Blocks.table(DocFold.columns(d), c);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, Text d) {
+                return Blocks.text(d.chars, d.width());
+            }
+            @Override public TextBlock visit(List<TextBlock> c, VerticalAlign d) {
+                return Blocks.vali(c);
+            }
+            @Override public TextBlock visit(List<TextBlock> c, VerticalStream d) {
+                return Blocks.vali(c);
+            }
+        };
+
 }
@@ -0,0 +1,319 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import maamissiniva.text.format.TextDoc;
+import maamissiniva.text.format.TextDoc.Empty;
+import maamissiniva.text.format.TextDoc.Fill;
+import maamissiniva.text.format.TextDoc.Group;
+import maamissiniva.text.format.TextDoc.Hole;
+import maamissiniva.text.format.TextDoc.HorizontalAlign;
+import maamissiniva.text.format.TextDoc.HorizontalAlignList;
+import maamissiniva.text.format.TextDoc.HorizontalConcat;
+import maamissiniva.text.format.TextDoc.HorizontalConcatList;
+import maamissiniva.text.format.TextDoc.Indent;
+import maamissiniva.text.format.TextDoc.Join;
+import maamissiniva.text.format.TextDoc.Nest;
+import maamissiniva.text.format.TextDoc.SoftLine;
+import maamissiniva.text.format.TextDoc.Table;
+import maamissiniva.text.format.TextDoc.Text;
+import maamissiniva.text.format.TextDoc.VerticalAlign;
+import maamissiniva.text.format.TextDoc.VerticalStream;
+
+/**
+ * Document with {@link Hole holes}, compiled once and rendered for many
+ * hole values.
+ * <p>
+ * The document is {@link RenderPlan#normalize(TextDoc) normalized}, sub
+ * documents without holes are rendered at compile time and the nodes that
+ * have holes below them are compiled to a post order program that combines
+ * blocks on a stack. Filling a template renders the hole values and lays
+ * out the nodes above the holes, no document is built. Templates are
+ * immutable and can be filled concurrently.
+ * <p>
+ * Templates are not fitted in a page width: the layout of the groups
+ * depends on the hole values, documents that are fitted are rendered
+ * filled by a renderer {@link StringRenderer#withWidth(int) with a width}.
+ * <pre>
+ *    Template getter = Template.compile(
+ *        vcat(hcat(txt("public "), hole("type"), txt(" get"), hole("Name"), txt("() {")),
+ *             indent(4, hcat(txt("return "), hole("name"), txt(";"))),
+ *             txt("}")));
+ *    getter.text(txt("int"), txt("Size"), txt("size"));
+ * </pre>
+ */
+public class Template {
+
+    /**
+     * Push a constant block.
+     */
+    private static final int CONST = 0;
+
+    /**
+     * Push a hole value.
+     */
+    private static final int HOLE  = 1;
+
+    /**
+     * Replace the blocks of the children of a node by the node block.
+     */
+    private static final int NODE  = 2;
+
+    /**
+     * Instructions as (opcode, operand) pairs.
+     */
+    private final int[]          code;
+    private final TextBlock[]    constants;
+    private final TextDoc[]      nodes;
+    private final int[]          arities;
+    private final List<String>   holes;
+    private final int            depth;
+    private final StringRenderer renderer;
+
+    private Template(int[] code, TextBlock[] constants, TextDoc[] nodes, int[] arities, List<String> holes, int depth, StringRenderer renderer) {
+        this.code      = code;
+        this.constants = constants;
+        this.nodes     = nodes;
+        this.arities   = arities;
+        this.holes     = holes;
+        this.depth     = depth;
+        this.renderer  = renderer;
+    }
+
+    /**
+     * Compile a document.
+     * @param doc document with holes
+     * @return    template
+     */
+    public static Template compile(TextDoc doc) {
+        return compile(doc, new StringRenderer());
+    }
+
+    /**
+     * Compile a document, constant parts and hole values are rendered by a renderer.
+     * @param doc      document with holes
+     * @param renderer renderer without page width
+     * @return         template
+     * @throws IllegalArgumentException if the renderer has a page width
+     */
+    public static Template compile(TextDoc doc, StringRenderer renderer) {
+        if (renderer.hasWidth())
+            throw new IllegalArgumentException("templates are not fitted in a page width");
+        TextDoc                 n        = RenderPlan.normalize(doc);
+        DocFold.Memo<Boolean>   hasHoles = DocFold.identityMemo();
+        DocFold.Memo<TextBlock> blocks   = DocFold.identityMemo();
+        DocFold.fold(n, hasHole, hasHoles);
+        List<Integer>           code      = new ArrayList<>();
+        List<TextBlock>         constants = new ArrayList<>();
+        Map<TextDoc, Integer>   indices   = new IdentityHashMap<>();
+        List<TextDoc>           nodes     = new ArrayList<>();
+        List<Integer>           arities   = new ArrayList<>();
+        List<String>            holes     = new ArrayList<>();
+        int                     sp        = 0;
+        int                     depth     = 0;
+        Deque<TextDoc>          docs      = new ArrayDeque<>();
+        Deque<Boolean>          expanded  = new ArrayDeque<>();
+        docs.push(n);
+        expanded.push(false);
+        while (! docs.isEmpty()) {
+            TextDoc d = docs.pop();
+            if (expanded.pop()) {
+                int arity = d.accept(DocFold.children).size();
+                code.add(NODE);
+                code.add(nodes.size());
+                nodes.add(d);
+                arities.add(arity);
+                sp -= arity - 1;
+            } else if (d instanceof Hole) {
+                String name = ((Hole) d).name;
+                if (! holes.contains(name))
+                    holes.add(name);
+                code.add(HOLE);
+                code.add(holes.indexOf(name));
+                depth = Math.max(depth, ++sp);
+            } else if (! hasHoles.get(d)) {
+                Integer i = indices.get(d);
+                if (i == null) {
+                    TextBlock b = renderer.render(d, blocks);
+                    for (TextLine l : b.lines)
+                        l.seal();
+                    i = constants.size();
+                    constants.add(b);
+                    indices.put(d, i);
+                }
+                code.add(CONST);
+                code.add(i);
+                depth = Math.max(depth, ++sp);
+            } else {
+                docs.push(d);
+                expanded.push(true);
+                List<TextDoc> cs = d.accept(DocFold.children);
+                for (int i = cs.size() - 1; i >= 0; i--) {
+                    docs.push(cs.get(i));
+                    expanded.push(false);
+                }
+            }
+        }
+        int[] c = new int[code.size()];
+        for (int i = 0; i < c.length; i++)
+            c[i] = code.get(i);
+        int[] a = new int[arities.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = arities.get(i);
+        return new Template(
+            c,
+            constants.toArray(new TextBlock[constants.size()]),
+            nodes.toArray(new TextDoc[nodes.size()]),
+            a,
+            Collections.unmodifiableList(holes),
+            depth,
+            renderer);
+    }
+
+    /**
+     * Hole names in order of first occurrence, the order of positional values.
+     * @return hole names
+     */
+    public List<String> holes() {
+        return holes;
+    }
+
+    /**
+     * Render the template.
+     * @param values hole values, in {@link #holes()} order
+     * @return       block
+     * @throws IllegalArgumentException if the number of values is not the number of holes
+     */
+    public TextBlock block(List<? extends TextDoc> values) {
+        if (values.size() != holes.size())
+            throw new IllegalArgumentException("expected " + holes.size() + " hole values, got " + values.size());
+        TextBlock[] bs = new TextBlock[values.size()];
+        for (int i = 0; i < bs.length; i++)
+            bs[i] = renderer.render(values.get(i));
+        TextBlock[] stack = new TextBlock[depth];
+        int         sp    = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+            case CONST :
+                stack[sp++] = constants[operand];
+                break;
+            case HOLE :
+                stack[sp++] = bs[operand];
+                break;
+            default :
+                int arity = arities[operand];
+                sp -= arity;
+                stack[sp] = nodes[operand].accept(Arrays.asList(Arrays.copyOfRange(stack, sp, sp + arity)), StringRenderer.combine);
+                sp++;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Render the template.
+     * @param values hole values, in {@link #holes()} order
+     * @return       block
+     */
+    public TextBlock block(TextDoc... values) {
+        return block(Arrays.asList(values));
+    }
+
+    /**
+     * Render the template.
+     * @param values hole values by name
+     * @return       block
+     * @throws IllegalArgumentException if a hole has no value
+     */
+    public TextBlock block(Map<String, ? extends TextDoc> values) {
+        List<TextDoc> vs = new ArrayList<>(holes.size());
+        for (String h : holes) {
+            TextDoc v = values.get(h);
+            if (v == null)
+                throw new IllegalArgumentException("no value for hole " + h);
+            vs.add(v);
+        }
+        return block(vs);
+    }
+
+    /**
+     * Render the template in a string.
+     * @param values hole values, in {@link #holes()} order
+     * @return       text
+     */
+    public String text(TextDoc... values) {
+        return StringRenderer.getText(block(values));
+    }
+
+    /**
+     * Render the template in a string.
+     * @param values hole values by name
+     * @return       text
+     */
+    public String text(Map<String, ? extends TextDoc> values) {
+        return StringRenderer.getText(block(values));
+    }
+
+    /**
+     * Does a document have holes.
+     */
+    private static final TextDoc.FVisitor<List<Boolean>, Boolean> hasHole = new TextDoc.FVisitor<List<Boolean>, Boolean>() {
+        @Override public Boolean visit(List<Boolean> c, Empty d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, Fill d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, Group d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Hole d) {
+            return true;
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalAlign d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalAlignList d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalConcat d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, HorizontalConcatList d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Indent d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Join d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Nest d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, SoftLine d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, Table d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, Text d) {
+            return false;
+        }
+        @Override public Boolean visit(List<Boolean> c, VerticalAlign d) {
+            return c.contains(true);
+        }
+        @Override public Boolean visit(List<Boolean> c, VerticalStream d) {
+            return c.contains(true);
+        }
+    };
+
+}
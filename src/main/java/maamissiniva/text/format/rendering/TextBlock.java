@@ -1,36 +1,265 @@
 package maamissiniva.text.format.rendering;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
 import maamissiniva.util.Iterables;
 
 /**
- * Rectangular block of text.
+ * Rectangular block of text. Lines may be narrower than the block, the
+ * missing trailing padding is implicit: it is only written when some text
+ * follows it on a line, using the block width.
+ * <p>
+ * A block is a sequence of runs of lines, each run being shifted right by
+ * a column offset. Indenting a block shifts its runs and aligning blocks
+ * vertically concatenates their runs, so that neither creates lines.
+ * Consecutive runs that have the same offset are merged in a run that
+ * chains the long runs, so that concatenating blocks does not copy their
+ * lines.
+ * Shifted lines are built when the {@link #lines} are read, renderers
+ * write the runs with their offsets.
  */
 public class TextBlock {
-        
+
     public static final TextBlock empty = new TextBlock(Collections.emptyList());
 
     /**
-     * Lines.
+     * Runs shorter than this are copied when they are merged, longer runs
+     * are chained.
+     */
+    private static final int copied = 64;
+
+    /**
+     * Lines, offsets applied.
      */
     public final List<TextLine> lines;
-    
+
     /**
      * Width.
      */
     public final int width;
-    
+
     /**
      * Height.
      */
     public final int height;
-    
+
+    private final List<List<TextLine>> runs;
+    private final int[]                offsets;
+
+    /**
+     * Index of the first line of the runs, followed by the height.
+     */
+    private final int[]                starts;
+
     public TextBlock(List<TextLine> lines) {
-        this.lines  = Collections.unmodifiableList(lines);
-        this.width  = Iterables.foldL(lines, 0, (x,y) -> Math.max(x, y.width));
-        this.height = lines.size();
+        this(lines, Iterables.foldL(lines, 0, (x,y) -> Math.max(x, y.width)));
+    }
+
+    /**
+     * Block whose lines are narrower than some width.
+     * @param lines lines
+     * @param width block width, at least the width of the lines
+     */
+    public TextBlock(List<TextLine> lines, int width) {
+        this(Collections.singletonList(lines), new int[1], new int[] { 0, lines.size() }, width);
+    }
+
+    private TextBlock(List<List<TextLine>> runs, int[] offsets, int[] starts, int width) {
+        this.runs    = runs;
+        this.offsets = offsets;
+        this.starts  = starts;
+        this.width   = width;
+        this.height  = starts[runs.size()];
+        this.lines   = runs.size() == 1 && offsets[0] == 0 ? Collections.unmodifiableList(runs.get(0)) : new Lines();
+    }
+
+    /**
+     * Number of runs.
+     * @return number of runs
+     */
+    int runs() {
+        return runs.size();
+    }
+
+    /**
+     * Lines of a run, offset not applied.
+     * @param r run index
+     * @return  lines
+     */
+    List<TextLine> run(int r) {
+        return runs.get(r);
+    }
+
+    /**
+     * Column offset of a run.
+     * @param r run index
+     * @return  offset
+     */
+    int offset(int r) {
+        return offsets[r];
+    }
+
+    /**
+     * Block shifted right.
+     * @param indent shift, ignored if 0 or less
+     * @return       block
+     */
+    TextBlock shift(int indent) {
+        if (indent <= 0 || height == 0)
+            return this;
+        int[] o = new int[offsets.length];
+        for (int r = 0; r < o.length; r++)
+            o[r] = offsets[r] + indent;
+        return new TextBlock(runs, o, starts, width + indent);
+    }
+
+    /**
+     * Vertical concatenation of the runs of blocks. Consecutive runs that
+     * have the same offset are merged, the cost is linear in the number of
+     * runs and in the number of lines of the short runs.
+     * @param bs    blocks
+     * @param width width of the widest block
+     * @return      block
+     */
+    static TextBlock concat(List<TextBlock> bs, int width) {
+        List<List<TextLine>> runs    = new ArrayList<>();
+        int[]                offsets = new int[8];
+        int[]                starts  = new int[9];
+        // Last run if it is merged, null otherwise
+        Chain                merged  = null;
+        for (TextBlock b : bs) {
+            for (int r = 0; r < b.runs.size(); r++) {
+                List<TextLine> run = b.runs.get(r);
+                if (run.isEmpty())
+                    continue;
+                int n = runs.size();
+                if (n > 0 && offsets[n - 1] == b.offsets[r]) {
+                    if (merged == null) {
+                        merged = new Chain(runs.get(n - 1));
+                        runs.set(n - 1, merged);
+                    }
+                    merged.add(run);
+                    starts[n] += run.size();
+                    continue;
+                }
+                if (n + 1 == starts.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * n);
+                    starts  = Arrays.copyOf(starts, 2 * n + 1);
+                }
+                runs.add(run);
+                offsets[n]    = b.offsets[r];
+                starts[n + 1] = starts[n] + run.size();
+                merged        = null;
+            }
+        }
+        if (runs.isEmpty())
+            return new TextBlock(Collections.emptyList(), width);
+        int n = runs.size();
+        return new TextBlock(runs, Arrays.copyOf(offsets, n), Arrays.copyOf(starts, n + 1), width);
+    }
+
+    /**
+     * Merged run: short runs are copied in a list that following short runs
+     * are added to, long runs are chained without copying their lines. The
+     * pieces of a merged run that is merged again are chained, so that
+     * chains are not nested.
+     */
+    private static class Chain extends AbstractList<TextLine> implements RandomAccess {
+
+        final List<List<TextLine>> pieces = new ArrayList<>();
+        // Index after the last line of the pieces
+        int[]                      ends   = new int[4];
+        // Last piece if it is a copy, null otherwise
+        List<TextLine>             copy;
+
+        Chain(List<TextLine> run) {
+            add(run);
+        }
+
+        void add(List<TextLine> run) {
+            if (run instanceof Chain) {
+                for (List<TextLine> piece : ((Chain) run).pieces)
+                    add(piece);
+                return;
+            }
+            int n   = pieces.size();
+            int end = n == 0 ? 0 : ends[n - 1];
+            if (run.size() < copied && copy != null) {
+                copy.addAll(run);
+                ends[n - 1] = end + run.size();
+                return;
+            }
+            if (n == ends.length)
+                ends = Arrays.copyOf(ends, 2 * n);
+            copy = run.size() < copied ? new ArrayList<>(run) : null;
+            pieces.add(copy == null ? run : copy);
+            ends[n] = end + run.size();
+        }
+
+        @Override
+        public TextLine get(int i) {
+            if (i < 0 || i >= size())
+                throw new IndexOutOfBoundsException("line " + i + " of " + size());
+            int p = Arrays.binarySearch(ends, 0, pieces.size(), i);
+            p = p < 0 ? -p - 1 : p + 1;
+            return pieces.get(p).get(p == 0 ? i : i - ends[p - 1]);
+        }
+
+        @Override
+        public int size() {
+            return ends[pieces.size() - 1];
+        }
+
+        @Override
+        public Iterator<TextLine> iterator() {
+            return new Iterator<TextLine>() {
+                int                p;
+                Iterator<TextLine> lines = pieces.get(0).iterator();
+                @Override public boolean hasNext() {
+                    while (! lines.hasNext()) {
+                        if (p + 1 == pieces.size())
+                            return false;
+                        lines = pieces.get(++p).iterator();
+                    }
+                    return true;
+                }
+                @Override public TextLine next() {
+                    if (! hasNext())
+                        throw new NoSuchElementException();
+                    return lines.next();
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Lines of the runs, shifted lines are built when they are read.
+     */
+    private class Lines extends AbstractList<TextLine> implements RandomAccess {
+
+        @Override
+        public TextLine get(int i) {
+            if (i < 0 || i >= height)
+                throw new IndexOutOfBoundsException("line " + i + " of " + height);
+            int r = Arrays.binarySearch(starts, 0, runs.size(), i);
+            if (r < 0)
+                r = -r - 2;
+            return TextLine.tl(offsets[r], runs.get(r).get(i - starts[r]));
+        }
+
+        @Override
+        public int size() {
+            return height;
+        }
+
     }
-    
+
 }
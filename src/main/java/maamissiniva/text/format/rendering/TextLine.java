@@ -1,82 +1,339 @@
 package maamissiniva.text.format.rendering;
 
-import static maamissiniva.util.Iterables.singleton;
+import static maamissiniva.util.Iterables.it;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import maamissiniva.util.MaamIterable;
 
 /**
- * Text line as a tree of TextString. 
+ * Text line as a leading padding followed by a flat run of segments.
+ * A segment is either some characters or some padding (null characters).
+ * <p>
+ * Lines are immutable: a line is a prefix of a segment buffer that may be
+ * shared with longer lines. Appending to a line that ends its buffer writes
+ * in place, otherwise the segments are copied, so that left nested
+ * concatenations cost a constant amortized time per segment. Only the
+ * thread that created a buffer writes in place and buffers are not grown
+ * in place, so that lines can be shared between documents and threads.
+ * Lines can be {@link #seal() sealed} to always copy their segments.
  */
-public abstract class TextLine {
-    
-    public static class TLNode extends TextLine {
-        
-        public final TextLine left;
-        public final TextLine right;
-    
-        public TLNode(TextLine left, TextLine right) {
-            super(left.width + right.width);
-            this.left  = left;
-            this.right = right;
-        }       
-
-        @Override
-        public MaamIterable<TextString> leaves() {
-            return left.leaves().concat(right.leaves());
+public class TextLine {
+
+    /**
+     * Segment buffer shared by the lines that are prefixes of it, appended
+     * to by the thread that created it.
+     */
+    private static class Segments {
+
+        final CharSequence[] strings;
+        final int[]          widths;
+        final Thread         owner = Thread.currentThread();
+        int                  size;
+        boolean              sealed;
+
+        Segments(int capacity) {
+            strings = new CharSequence[capacity];
+            widths  = new int[capacity];
         }
 
-    }
-    
-    public static class TLLeaf extends TextLine {
-        
-        public final TextString string;
-        
-        public TLLeaf(TextString string) {
-            super(string.width);
-            this.string = string;
+        /**
+         * Can segments be written in place after some prefix.
+         * @param count    prefix size
+         * @param capacity required capacity
+         * @return         true if the prefix ends the buffer, the buffer is
+         *                 large enough and owned by the current thread
+         */
+        boolean appendable(int count, int capacity) {
+            return size == count && capacity <= strings.length && ! sealed && owner == Thread.currentThread();
         }
-        
-        @Override
-        public MaamIterable<TextString> leaves() {
-            return singleton(string);
+
+        /**
+         * Buffer of the current thread holding a prefix of this buffer.
+         * @param count    prefix size
+         * @param capacity capacity, at least count
+         * @return         buffer
+         */
+        Segments copy(int count, int capacity) {
+            Segments s = new Segments(capacity);
+            System.arraycopy(strings, 0, s.strings, 0, count);
+            System.arraycopy(widths,  0, s.widths,  0, count);
+            s.size = count;
+            return s;
         }
-        
+
+        void add(CharSequence s, int width) {
+            strings[size] = s;
+            widths[size]  = width;
+            size++;
+        }
+
     }
-    
+
+    private static final Segments noSegments = new Segments(0);
+
+    private final Segments segments;
+
+    /**
+     * Number of segments of this line.
+     */
+    private final int count;
+
+    /**
+     * Leading padding.
+     */
+    public final int lead;
+
+    /**
+     * Width including leading padding.
+     */
     public final int width;
-    
-    public TextLine(int width) {
-        this.width   = width;
+
+    private TextLine(Segments segments, int count, int lead, int width) {
+        this.segments = segments;
+        this.count    = count;
+        this.lead     = lead;
+        this.width    = width;
+    }
+
+    /**
+     * Number of segments, leading padding excluded.
+     * @return number of segments
+     */
+    public int segments() {
+        return count;
+    }
+
+    /**
+     * Segment characters.
+     * @param i segment index
+     * @return  segment characters, null if the segment is padding
+     */
+    public CharSequence segment(int i) {
+        return segments.strings[i];
+    }
+
+    /**
+     * Segment width.
+     * @param i segment index
+     * @return  segment width
+     */
+    public int segmentWidth(int i) {
+        return segments.widths[i];
+    }
+
+    /**
+     * Prevent in place appends to the segments of this line, appending
+     * to this line or to a line that shares its segments copies them.
+     */
+    public void seal() {
+        segments.sealed = true;
+    }
+
+    /**
+     * Line content as text strings, leading padding included.
+     * @return text strings
+     */
+    public MaamIterable<TextString> leaves() {
+        List<TextString> l = new ArrayList<>(count + 1);
+        if (lead > 0)
+            l.add(TextString.pad(lead));
+        for (int i = 0; i < count; i++) {
+            CharSequence s = segments.strings[i];
+            l.add(s == null ? TextString.pad(segments.widths[i]) : new TextString(segments.widths[i], s.toString()));
+        }
+        return it(l);
     }
-    
-    public abstract MaamIterable<TextString> leaves();
-    
-    public static TextLine tlString(String s) {
-        return new TLLeaf(TextString.string(s));
+
+    /**
+     * Append segments to this line.
+     * @param pad   padding before the segments of r
+     * @param r     appended line, may be null
+     * @return      new line
+     */
+    private TextLine append(int pad, TextLine r) {
+        int rCount = r == null ? 0 : r.count;
+        if (r != null && rCount == 0) {
+            pad += r.width;
+            r = null;
+        } else if (r != null) {
+            pad += r.lead;
+        }
+        if (count == 0) {
+            if (r == null)
+                return tlPad(width + pad);
+            return new TextLine(r.segments, rCount, width + pad, width + pad + r.width - r.lead);
+        }
+        int n = (pad > 0 ? 1 : 0) + rCount;
+        if (n == 0)
+            return this;
+        Segments s = segments;
+        if (! s.appendable(count, count + n))
+            s = s.copy(count, s.size == count ? Math.max(count + n, 2 * s.strings.length) : count + n);
+        int w = width;
+        if (pad > 0) {
+            s.add(null, pad);
+            w += pad;
+        }
+        for (int i = 0; i < rCount; i++) {
+            s.add(r.segments.strings[i], r.segments.widths[i]);
+            w += r.segments.widths[i];
+        }
+        return new TextLine(s, count + n, lead, w);
     }
-    
+
+    /**
+     * Builds a line from lines, strings and padding into a single segment
+     * buffer. Consecutive paddings are merged. A builder is reset by
+     * {@link #build()} and can be reused.
+     */
+    public static class Builder {
+
+        private Segments segments;
+        private int      lead;
+        private int      width;
+        private int      pending;
+        private int      capacity = 8;
+
+        /**
+         * Append padding.
+         * @param width padding width, ignored if 0 or less
+         * @return      this builder
+         */
+        public Builder pad(int width) {
+            if (width > 0)
+                pending += width;
+            return this;
+        }
+
+        /**
+         * Append characters.
+         * @param s characters, not copied
+         * @return  this builder
+         */
+        public Builder add(CharSequence s) {
+            if (s.length() > 0) {
+                flush(1);
+                int w = DisplayWidth.of(s);
+                segments.add(s, w);
+                width += w;
+            }
+            return this;
+        }
+
+        /**
+         * Append a line.
+         * @param l line
+         * @return  this builder
+         */
+        public Builder add(TextLine l) {
+            pending += l.lead;
+            if (l.count > 0) {
+                flush(l.count);
+                System.arraycopy(l.segments.strings, 0, segments.strings, segments.size, l.count);
+                System.arraycopy(l.segments.widths,  0, segments.widths,  segments.size, l.count);
+                segments.size += l.count;
+                width += l.width - l.lead;
+            }
+            return this;
+        }
+
+        /**
+         * Append a line padded to some width.
+         * @param l     line
+         * @param width minimum width
+         * @return      this builder
+         */
+        public Builder add(TextLine l, int width) {
+            return add(l).pad(width - l.width);
+        }
+
+        /**
+         * Writes pending padding and makes room for segments.
+         * @param n number of segments to add
+         */
+        private void flush(int n) {
+            if (segments == null) {
+                segments = new Segments(Math.max(capacity, n + 1));
+                lead     = pending;
+                width    = pending;
+                pending  = 0;
+            }
+            if (segments.size + n + 1 > segments.strings.length)
+                segments = segments.copy(segments.size, Math.max(segments.size + n + 1, 2 * segments.strings.length));
+            if (pending > 0) {
+                segments.add(null, pending);
+                width  += pending;
+                pending = 0;
+            }
+        }
+
+        /**
+         * Built line, trailing padding is dropped: padding is only written
+         * when a string follows it.
+         * @return line
+         */
+        public TextLine build() {
+            TextLine l;
+            if (segments == null) {
+                l = tlPad(0);
+            } else {
+                capacity = segments.size;
+                l = new TextLine(segments, segments.size, lead, width);
+            }
+            segments = null;
+            lead     = 0;
+            width    = 0;
+            pending  = 0;
+            return l;
+        }
+
+    }
+
+    public static TextLine tlString(CharSequence s) {
+        if (s.length() == 0)
+            return tlPad(0);
+        return tlString(s, DisplayWidth.of(s));
+    }
+
+    /**
+     * Line of characters whose width is known.
+     * @param s     characters, not copied
+     * @param width characters width, see {@link DisplayWidth}
+     * @return      line
+     */
+    public static TextLine tlString(CharSequence s, int width) {
+        if (s.length() == 0)
+            return tlPad(0);
+        Segments segments = new Segments(4);
+        segments.add(s, width);
+        return new TextLine(segments, 1, 0, width);
+    }
+
     public static TextLine tlPad(int width) {
-        return new TLLeaf(TextString.pad(width));
+        width = Math.max(0, width);
+        return new TextLine(noSegments, 0, width, width);
     }
-    
+
     public static TextLine tl(String left, TextLine rigth) {
-        return new TLNode(tlString(left), rigth);
+        return tl(tlString(left), rigth);
     }
-    
+
     public static TextLine tl(TextLine left, TextLine right) {
-        return new TLNode(left, right);
+        return left.append(0, right);
     }
-    
+
     public static TextLine tl(TextLine left, String right) {
-        return new TLNode(left, tlString(right));
+        return tl(left, tlString(right));
     }
-    
+
     public static TextLine tl(int left, TextLine right) {
         if (left <= 0)
             return right;
-        return tl(tlPad(left), right);
+        return new TextLine(right.segments, right.count, right.lead + left, right.width + left);
     }
-    
+
     /**
      * Line of left content and right padding. A 0 or less right padding
      * produces the original line.
@@ -87,7 +344,7 @@ public abstract class TextLine {
     public static TextLine tl(TextLine left, int right) {
         if (right <= 0)
             return left;
-        return tl(left, tlPad(right));
+        return left.append(right, null);
     }
 
     /**
@@ -100,5 +357,5 @@ public abstract class TextLine {
             return this;
         return tl(this, width - this.width);
     }
-    
+
 }
@@ -0,0 +1,160 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Characters of a range of a shared source, e.g. a {@link java.nio.CharBuffer}
+ * of a mapped file, read in place: slicing copies no characters, they are
+ * copied when the slice is written to the output or converted to a string.
+ * <p>
+ * Like {@link StringBuilder}, slices do not define equality, use
+ * {@link #contentEquals(CharSequence, CharSequence)} and
+ * {@link #hash(CharSequence)} to compare characters.
+ */
+public final class TextSlice implements CharSequence {
+
+    private final CharSequence source;
+    private final int          start;
+    private final int          end;
+
+    /**
+     * Slice of a source.
+     * @param source source, must not change while the slice is used
+     * @param start  index of the first character
+     * @param end    index after the last character
+     */
+    public TextSlice(CharSequence source, int start, int end) {
+        if (start < 0 || end > source.length() || start > end)
+            throw new IndexOutOfBoundsException("slice " + start + ".." + end + " of " + source.length());
+        // Slices of slices read the original source
+        if (source instanceof TextSlice) {
+            TextSlice s = (TextSlice) source;
+            source  = s.source;
+            start  += s.start;
+            end    += s.start;
+        }
+        this.source = source;
+        this.start  = start;
+        this.end    = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start)
+            throw new IndexOutOfBoundsException("index " + index + " of " + (end - start));
+        return source.charAt(start + index);
+    }
+
+    @Override
+    public TextSlice subSequence(int start, int end) {
+        return new TextSlice(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(end - start).append(source, start, end).toString();
+    }
+
+    /**
+     * Lines of a text, split at the line breaks of {@link #isLineBreak(char)},
+     * "\r\n" being a single break. Line breaks that end the text are ignored,
+     * like {@link String#split(String)} does. Lines of a string are strings,
+     * lines of other texts are slices of the text, a text without line breaks
+     * is its only line.
+     * @param s text
+     * @return  lines, no line if the text is only made of line breaks
+     */
+    public static List<CharSequence> lines(CharSequence s) {
+        int n     = s.length();
+        int first = 0;
+        while (first < n && ! isLineBreak(s.charAt(first)))
+            first++;
+        if (first == n)
+            return Collections.singletonList(s);
+        List<CharSequence> lines = new ArrayList<>();
+        int                from  = 0;
+        for (int i = first; i < n; i++) {
+            char c = s.charAt(i);
+            if (! isLineBreak(c))
+                continue;
+            lines.add(line(s, from, i));
+            if (c == '\r' && i + 1 < n && s.charAt(i + 1) == '\n')
+                i++;
+            from = i + 1;
+        }
+        if (from < n)
+            lines.add(line(s, from, n));
+        int k = lines.size();
+        while (k > 0 && lines.get(k - 1).length() == 0)
+            k--;
+        return lines.subList(0, k);
+    }
+
+    private static CharSequence line(CharSequence s, int start, int end) {
+        return s instanceof String ? ((String) s).substring(start, end) : new TextSlice(s, start, end);
+    }
+
+    /**
+     * Is a character a line break, the characters of the "\R" regular
+     * expression: "\n", "\r", U+000B, U+000C, U+0085, U+2028 and U+2029.
+     * Texts and filled texts are split at the same breaks.
+     * @param c character
+     * @return  true if the character breaks lines
+     */
+    public static boolean isLineBreak(char c) {
+        switch (c) {
+        case '\n'     :
+        case '\u000B' :
+        case '\u000C' :
+        case '\r'     :
+        case '\u0085' :
+        case '\u2028' :
+        case '\u2029' :
+            return true;
+        default :
+            return false;
+        }
+    }
+
+    /**
+     * Hash code of characters, the {@link String#hashCode() string hash code}.
+     * @param s characters
+     * @return  hash code
+     */
+    public static int hash(CharSequence s) {
+        if (s instanceof String)
+            return s.hashCode();
+        int h = 0;
+        for (int i = 0; i < s.length(); i++)
+            h = 31 * h + s.charAt(i);
+        return h;
+    }
+
+    /**
+     * Do two character sequences have the same characters.
+     * @param a characters
+     * @param b characters
+     * @return  true if the characters are the same
+     */
+    public static boolean contentEquals(CharSequence a, CharSequence b) {
+        if (a instanceof String)
+            return ((String) a).contentEquals(b);
+        if (b instanceof String)
+            return ((String) b).contentEquals(a);
+        int n = a.length();
+        if (n != b.length())
+            return false;
+        for (int i = 0; i < n; i++)
+            if (a.charAt(i) != b.charAt(i))
+                return false;
+        return true;
+    }
+
+}
@@ -6,7 +6,7 @@ package maamissiniva.text.format.rendering;
 public class TextString {
     
     /**
-     * Text width.
+     * Text width in columns, see {@link DisplayWidth}.
      */
     public final int width;
     
@@ -21,6 +21,15 @@ public class TextString {
     }
     
     public boolean isPadding() {
+        return isPadding(value);
+    }
+
+    /**
+     * Are characters only spaces and tabs.
+     * @param value characters
+     * @return      true if there are no characters or only spaces and tabs
+     */
+    public static boolean isPadding(CharSequence value) {
         for (int i=0; i<value.length(); i++) {
             switch (value.charAt(i)) {
             case ' '  :
@@ -37,7 +46,7 @@ public class TextString {
     }
     
     public static TextString string(String s) {
-        return new TextString(s.length(), s);
+        return new TextString(DisplayWidth.of(s), s);
     }
     
 }
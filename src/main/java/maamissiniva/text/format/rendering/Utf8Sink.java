@@ -0,0 +1,293 @@
+package maamissiniva.text.format.rendering;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Appendable that encodes characters in UTF-8 straight into byte buffers,
+ * without intermediate strings or charset encoders. Padding is copied from
+ * preencoded spaces. Bytes are sent to the target when the buffers are full
+ * and when the sink is flushed.
+ * <p>
+ * The renderers write lines to a sink segment by segment, see
+ * {@link StringRenderer#renderUtf8(maamissiniva.text.format.TextDoc, OutputStream)}.
+ * Unpaired surrogates are encoded as '?'. Sinks are not thread safe.
+ */
+public abstract class Utf8Sink implements Appendable, Flushable {
+
+    /**
+     * Encoded {@link StringRenderer#spaces}.
+     */
+    private static final byte[] spaces = new byte[StringRenderer.spaces.length()];
+
+    static {
+        Arrays.fill(spaces, (byte) ' ');
+    }
+
+    /**
+     * Buffer being filled.
+     */
+    protected ByteBuffer buffer;
+
+    /**
+     * High surrogate appended alone, 0 if none.
+     */
+    private char high;
+
+    /**
+     * Number of encoded bytes.
+     */
+    private long written;
+
+    protected Utf8Sink(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Sink to an output stream through a heap buffer.
+     * @param out        output stream, not closed by the sink
+     * @param bufferSize buffer size in bytes
+     * @return           sink
+     */
+    public static Utf8Sink of(OutputStream out, int bufferSize) {
+        return new Utf8Sink(ByteBuffer.allocate(Math.max(16, bufferSize))) {
+            @Override protected void drain() throws IOException {
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                buffer.clear();
+            }
+            @Override public void flush() throws IOException {
+                super.flush();
+                drain();
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Sink to an output stream through a 64KB buffer.
+     * @param out output stream, not closed by the sink
+     * @return    sink
+     */
+    public static Utf8Sink of(OutputStream out) {
+        return of(out, 1 << 16);
+    }
+
+    /**
+     * Sink into a byte buffer, bytes are written from the buffer position.
+     * @param buffer buffer
+     * @return       sink that throws {@link BufferOverflowException} if the buffer is full
+     */
+    public static Utf8Sink of(ByteBuffer buffer) {
+        return new Utf8Sink(buffer) {
+            @Override protected void drain() {
+                throw new BufferOverflowException();
+            }
+        };
+    }
+
+    /**
+     * Sink to a channel (a {@link java.nio.channels.FileChannel}) through
+     * direct buffers that are written by gathering writes once they are all
+     * full.
+     * @param channel    channel, not closed by the sink
+     * @param buffers    number of buffers
+     * @param bufferSize buffer size in bytes
+     * @return           sink
+     */
+    public static Utf8Sink of(GatheringByteChannel channel, int buffers, int bufferSize) {
+        ByteBuffer[] bs = new ByteBuffer[Math.max(1, buffers)];
+        for (int i = 0; i < bs.length; i++)
+            bs[i] = ByteBuffer.allocateDirect(Math.max(16, bufferSize));
+        return new Utf8Sink(bs[0]) {
+            int current;
+            @Override protected void drain() throws IOException {
+                if (current < bs.length - 1)
+                    buffer = bs[++current];
+                else
+                    write();
+            }
+            @Override public void flush() throws IOException {
+                super.flush();
+                write();
+            }
+            void write() throws IOException {
+                for (int i = 0; i <= current; i++)
+                    bs[i].flip();
+                ByteBuffer last = bs[current];
+                while (last.hasRemaining())
+                    channel.write(bs, 0, current + 1);
+                for (int i = 0; i <= current; i++)
+                    bs[i].clear();
+                current = 0;
+                buffer  = bs[0];
+            }
+        };
+    }
+
+    /**
+     * Sink to a channel through four 64KB buffers.
+     * @param channel channel, not closed by the sink
+     * @return        sink
+     */
+    public static Utf8Sink of(GatheringByteChannel channel) {
+        return of(channel, 4, 1 << 16);
+    }
+
+    /**
+     * Make room in the buffer: write the buffer to the target or switch to
+     * another buffer.
+     * @throws IOException if the target fails
+     */
+    protected abstract void drain() throws IOException;
+
+    /**
+     * Write buffered bytes to the target. A pending high surrogate is
+     * encoded as '?'.
+     * @throws IOException if the target fails
+     */
+    @Override
+    public void flush() throws IOException {
+        unpaired();
+    }
+
+    /**
+     * Number of bytes appended to the sink, sent to the target or buffered.
+     * @return number of bytes
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * Append spaces.
+     * @param count number of spaces
+     * @return      this sink
+     * @throws IOException if the target fails
+     */
+    public Utf8Sink spaces(int count) throws IOException {
+        if (count > 0)
+            unpaired();
+        while (count > 0) {
+            if (! buffer.hasRemaining())
+                drain();
+            int n = Math.min(count, Math.min(spaces.length, buffer.remaining()));
+            buffer.put(spaces, 0, n);
+            written += n;
+            count   -= n;
+        }
+        return this;
+    }
+
+    /**
+     * Append a line, trailing padding excluded.
+     * @param line   line
+     * @param indent indentation, not written if the line is blank
+     * @throws IOException if the target fails
+     */
+    public void line(TextLine line, int indent) throws IOException {
+        // Padding is written when a string that is not padding follows it
+        int pending = indent + line.lead;
+        int from    = 0;
+        for (int i = 0; i < line.segments(); i++) {
+            CharSequence s = line.segment(i);
+            if (s == null || TextString.isPadding(s))
+                continue;
+            spaces(pending);
+            pending = 0;
+            for (int k = from; k < i; k++) {
+                CharSequence p = line.segment(k);
+                if (p == null)
+                    spaces(line.segmentWidth(k));
+                else
+                    append(p);
+            }
+            append(s);
+            from = i + 1;
+        }
+    }
+
+    @Override
+    public Utf8Sink append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Utf8Sink append(CharSequence csq, int start, int end) throws IOException {
+        int i = start;
+        while (i < end) {
+            // ASCII run
+            int n = Math.min(end - i, buffer.remaining());
+            int j = i;
+            if (high == 0) {
+                while (j < i + n) {
+                    char c = csq.charAt(j);
+                    if (c >= 0x80)
+                        break;
+                    buffer.put((byte) c);
+                    j++;
+                }
+                written += j - i;
+            }
+            if (j == i)
+                append(csq.charAt(j++));
+            i = j;
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8Sink append(char c) throws IOException {
+        if (high != 0) {
+            char h = high;
+            high = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(h, c);
+                put((byte) (0xF0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                put((byte) (0x80 | (cp & 0x3F)));
+                return this;
+            }
+            put((byte) '?');
+        }
+        if (c < 0x80) {
+            put((byte) c);
+        } else if (c < 0x800) {
+            put((byte) (0xC0 | (c >> 6)));
+            put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c)) {
+            high = c;
+        } else if (Character.isLowSurrogate(c)) {
+            put((byte) '?');
+        } else {
+            put((byte) (0xE0 | (c >> 12)));
+            put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            put((byte) (0x80 | (c & 0x3F)));
+        }
+        return this;
+    }
+
+    /**
+     * Encode a pending high surrogate as '?'.
+     * @throws IOException if the target fails
+     */
+    private void unpaired() throws IOException {
+        if (high != 0) {
+            high = 0;
+            put((byte) '?');
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (! buffer.hasRemaining())
+            drain();
+        buffer.put(b);
+        written++;
+    }
+
+}
@@ -0,0 +1,243 @@
+package maamissiniva.text.format.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Lines of a {@link maamissiniva.text.format.TextDoc.Fill filled} text.
+ * Words are separated by spaces and tabs, paragraphs by line breaks. The
+ * words of a paragraph are laid out on lines of at most the fill width,
+ * separated by single spaces. A word wider than the fill width is alone on
+ * its line, a paragraph without words is an empty line.
+ * <p>
+ * Lines are kept as ranges of the text, a line string is built when it is
+ * asked for. Greedy wrapping puts as many words as possible on each line in
+ * one pass. Optimal wrapping minimizes the sum of the squares of the space
+ * left at the end of the lines (but the last line of the paragraphs), lines
+ * are looked for among the at most {@link #MAX_WORDS} words that precede a
+ * word so that the cost is linear in the number of words.
+ */
+public class Wrapping {
+
+    /**
+     * Maximum number of words of the lines of an optimal wrapping.
+     */
+    public static final int MAX_WORDS = 256;
+
+    private final String text;
+    private int[]        from   = new int[8];
+    private int[]        to     = new int[8];
+    private int[]        widths = new int[8];
+    private int          height;
+    private int          width;
+
+    private Wrapping(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Wrap a text.
+     * @param text    text
+     * @param width   maximum line width
+     * @param optimal optimal wrapping, greedy wrapping if false
+     * @return        lines
+     */
+    public static Wrapping of(String text, int width, boolean optimal) {
+        Wrapping w     = new Wrapping(text);
+        Words    words = optimal ? new Words() : null;
+        int      start = 0;
+        int      n     = text.length();
+        while (true) {
+            int end = start;
+            while (end < n && ! TextSlice.isLineBreak(text.charAt(end)))
+                end++;
+            if (optimal)
+                w.optimal(start, end, width, words);
+            else
+                w.greedy(start, end, width);
+            if (end == n)
+                return w;
+            start = end + (text.charAt(end) == '\r' && end + 1 < n && text.charAt(end + 1) == '\n' ? 2 : 1);
+        }
+    }
+
+    /**
+     * Number of lines.
+     * @return height
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Width of the widest line.
+     * @return width
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Width of a line.
+     * @param i line index
+     * @return  width
+     */
+    public int width(int i) {
+        return widths[i];
+    }
+
+    /**
+     * Line string, words separated by single spaces.
+     * @param i line index
+     * @return  line
+     */
+    public String line(int i) {
+        int f = from[i];
+        int t = to[i];
+        for (int k = f; k < t; k++) {
+            char c = text.charAt(k);
+            if (c == '\t' || (c == ' ' && text.charAt(k + 1) == ' '))
+                return collapse(f, t);
+        }
+        return text.substring(f, t);
+    }
+
+    private String collapse(int f, int t) {
+        StringBuilder sb    = new StringBuilder(t - f);
+        boolean       blank = false;
+        for (int k = f; k < t; k++) {
+            char c = text.charAt(k);
+            if (isBlank(c)) {
+                blank = true;
+            } else {
+                if (blank)
+                    sb.append(' ');
+                blank = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void greedy(int start, int end, int max) {
+        int  lineFrom  = -1;
+        int  lineTo    = start;
+        long lineWidth = 0;
+        int  i         = start;
+        while (true) {
+            while (i < end && isBlank(text.charAt(i)))
+                i++;
+            if (i == end)
+                break;
+            int ws = i;
+            while (i < end && ! isBlank(text.charAt(i)))
+                i++;
+            int w = DisplayWidth.of(text, ws, i);
+            if (lineFrom >= 0 && lineWidth + 1 + w <= max) {
+                lineWidth += 1 + w;
+            } else {
+                if (lineFrom >= 0)
+                    add(lineFrom, lineTo, (int) lineWidth);
+                lineFrom  = ws;
+                lineWidth = w;
+            }
+            lineTo = i;
+        }
+        if (lineFrom < 0)
+            add(start, start, 0);
+        else
+            add(lineFrom, lineTo, (int) lineWidth);
+    }
+
+    private void optimal(int start, int end, int max, Words words) {
+        words.split(text, start, end);
+        int n = words.count;
+        if (n == 0) {
+            add(start, start, 0);
+            return;
+        }
+        // cost[j]: cost of the words before j, first[j]: first word of the
+        // line that ends before j
+        double[] cost  = new double[n + 1];
+        int[]    first = new int[n + 1];
+        for (int j = 1; j <= n; j++) {
+            cost[j] = Double.POSITIVE_INFINITY;
+            long w  = -1;
+            for (int i = j - 1; i >= Math.max(0, j - MAX_WORDS); i--) {
+                w += 1 + words.widths[i];
+                if (w > max && i < j - 1)
+                    break;
+                double slack = j == n ? 0 : Math.max(0, max - w);
+                double c     = cost[i] + slack * slack;
+                if (c < cost[j]) {
+                    cost[j]  = c;
+                    first[j] = i;
+                }
+            }
+        }
+        int[] breaks = new int[n + 1];
+        int   count  = 0;
+        for (int j = n; j > 0; j = first[j])
+            breaks[count++] = j;
+        for (int k = count - 1; k >= 0; k--) {
+            int j = breaks[k];
+            int i = first[j];
+            long w = -1;
+            for (int x = i; x < j; x++)
+                w += 1 + words.widths[x];
+            add(words.from[i], words.to[j - 1], (int) w);
+        }
+    }
+
+    private void add(int f, int t, int w) {
+        if (height == from.length) {
+            from   = Arrays.copyOf(from, 2 * height);
+            to     = Arrays.copyOf(to, 2 * height);
+            widths = Arrays.copyOf(widths, 2 * height);
+        }
+        from[height]   = f;
+        to[height]     = t;
+        widths[height] = w;
+        height++;
+        width = Math.max(width, w);
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Words of a paragraph, arrays reused across paragraphs.
+     */
+    private static class Words {
+
+        int[] from   = new int[64];
+        int[] to     = new int[64];
+        int[] widths = new int[64];
+        int   count;
+
+        void split(String text, int start, int end) {
+            count = 0;
+            int i = start;
+            while (true) {
+                while (i < end && isBlank(text.charAt(i)))
+                    i++;
+                if (i == end)
+                    return;
+                int ws = i;
+                while (i < end && ! isBlank(text.charAt(i)))
+                    i++;
+                if (count == from.length) {
+                    from   = Arrays.copyOf(from, 2 * count);
+                    to     = Arrays.copyOf(to, 2 * count);
+                    widths = Arrays.copyOf(widths, 2 * count);
+                }
+                from[count]   = ws;
+                to[count]     = i;
+                widths[count] = DisplayWidth.of(text, ws, i);
+                count++;
+            }
+        }
+
+    }
+
+}
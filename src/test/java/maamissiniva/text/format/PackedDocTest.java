@@ -0,0 +1,134 @@
+package maamissiniva.text.format;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+import static maamissiniva.text.format.TextDocShortcuts.fill;
+import static maamissiniva.text.format.TextDocShortcuts.fillOptimal;
+import static maamissiniva.text.format.TextDocShortcuts.group;
+import static maamissiniva.text.format.TextDocShortcuts.hali;
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.nest;
+import static maamissiniva.text.format.TextDocShortcuts.softline;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.rendering.StringRenderer;
+
+public class PackedDocTest {
+
+    private static final int HEADER = 24;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path file = Files.createTempFile("packed", ".doc");
+        try {
+            for (int t = 0; t < 500; t++) {
+                TextDoc doc  = doc(5);
+                String  text = StringRenderer.getText(doc);
+                PackedDoc.of(doc).write(file);
+                PackedDoc read = PackedDoc.read(file);
+                assertEquals(text, read.text());
+                assertEquals(text, StringRenderer.getText(read.toDoc()));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void linkToLaterNode() throws IOException {
+        Path file = Files.createTempFile("packed", ".doc");
+        try {
+            PackedDoc.of(vcat(txt("a"), txt("b"))).write(file);
+            int nodes = getInt(file, 8);
+            int links = getInt(file, 12);
+            // The last link is a link of the root, the last node
+            putInt(file, HEADER + ((nodes + 3) & ~3) + 4 * (3 * nodes + 1 + links - 1), nodes - 1);
+            assertCorrupted(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void stringOutOfPool() throws IOException {
+        Path file = Files.createTempFile("packed", ".doc");
+        try {
+            PackedDoc.of(vcat(txt("a"), txt("b"))).write(file);
+            int nodes = getInt(file, 8);
+            // String index of the first node, a text
+            putInt(file, HEADER + ((nodes + 3) & ~3), getInt(file, 16));
+            assertCorrupted(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertCorrupted(Path file) {
+        try {
+            PackedDoc.read(file);
+            fail("corrupted document read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static int getInt(Path file, int position) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(4);
+            ch.read(b, position);
+            return b.getInt(0);
+        }
+    }
+
+    private static void putInt(Path file, int position, int value) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.write((ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip(), position);
+        }
+    }
+
+    private TextDoc doc(int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(6)) {
+            case 0  : return empty;
+            case 1  : return txt("a\nbb");
+            case 2  : return softline();
+            case 3  : return fill(8, "the quick brown fox jumps");
+            case 4  : return fillOptimal(6, "over the lazy dog");
+            default : return txt("x" + "yyy".substring(random.nextInt(4)));
+            }
+        }
+        List<TextDoc> l = new ArrayList<>();
+        for (int n = 2 + random.nextInt(3), i = 0; i < n; i++)
+            l.add(doc(depth - 1));
+        switch (random.nextInt(9)) {
+        case 0  : return vcat(l);
+        case 1  : return hcat(l);
+        case 2  : return hali(l);
+        case 3  : return new TextDoc.Join(l, txt(","), random.nextBoolean());
+        case 4  : return indent(2, l.get(0));
+        case 5  : return nest(2, l.get(0));
+        case 6  : return group(l.get(0));
+        case 7  : return new TextDoc.Table(Arrays.asList(l, l.subList(1, l.size())));
+        default : return vcat(l.get(0), l.get(0));
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.group;
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.line;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcatIntercalate;
+import static maamissiniva.text.format.TextDocShortcuts.vstream;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class BestFitTest {
+
+    private static String write(StringRenderer r, TextDoc doc) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        r.write(doc, sb);
+        return sb.toString();
+    }
+
+    private static void assertSameWithWidth(TextDoc doc) throws IOException {
+        assertEquals(write(new StringRenderer(), doc), write(new StringRenderer().withWidth(80), doc));
+    }
+
+    @Test
+    public void streamInConcatenation() throws IOException {
+        assertSameWithWidth(hcat(txt("// "), vstream(Arrays.asList(txt("a"), txt("b")))));
+    }
+
+    @Test
+    public void streamsInVerticalJoin() throws IOException {
+        TextDoc s = vstream(Arrays.asList(txt("a"), txt("b")));
+        assertSameWithWidth(vcatIntercalate(Arrays.asList(s, txt("c"), s), txt(";")));
+    }
+
+    @Test
+    public void streamInTable() throws IOException {
+        TextDoc s = vstream(Arrays.asList(txt("a"), txt("bb")));
+        assertSameWithWidth(new TextDoc.Table(Arrays.asList(Arrays.asList(txt("x"), s, txt("y")),
+                                                            Arrays.asList(txt("zzz"), txt("w"), txt("v")))));
+    }
+
+    @Test
+    public void streamBreaksGroup() throws IOException {
+        TextDoc doc = group(hcat(txt("a"), line(), vstream(Arrays.asList(txt("b")))));
+        assertEquals("a\nb", write(new StringRenderer().withWidth(80), doc));
+    }
+
+    @Test
+    public void streamedDocumentsFitted() throws IOException {
+        TextDoc doc = hcat(txt("> "), vstream(Arrays.asList(group(hcat(txt("aaaa"), line(), txt("bbbb"))))));
+        assertEquals("> aaaa\n  bbbb", write(new StringRenderer().withWidth(8), doc));
+    }
+
+}
@@ -0,0 +1,96 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.hali;
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.hcatIntercalate;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+import static maamissiniva.text.format.TextDocShortcuts.vcatIntercalate;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class IncrementalRendererTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void lineOfVerticalAlignment() {
+        List<TextDoc> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            rows.add(txt("line " + i));
+        IncrementalRenderer r = new IncrementalRenderer(vcat(rows));
+        IncrementalRenderer.Change c = r.replace(new int[] { 500 }, txt("a\nb"));
+        assertEquals(500, c.from);
+        assertEquals(501, c.oldTo);
+        assertEquals(502, c.newTo);
+        assertEquals(new StringRenderer().text(r.doc()), r.text());
+    }
+
+    @Test
+    public void randomEdits() {
+        for (int t = 0; t < 100; t++) {
+            IncrementalRenderer r = new IncrementalRenderer(doc(5));
+            for (int e = 0; e < 30; e++) {
+                List<String>               before = lines(r.block());
+                IncrementalRenderer.Change c      = r.replace(path(r.doc()), doc(2));
+                List<String>               after  = lines(r.block());
+                assertEquals(new StringRenderer().text(r.doc()), r.text());
+                assertEquals(c.toString(), before.size() - c.oldTo, after.size() - c.newTo);
+                assertEquals(c.toString(), before.subList(0, c.from), after.subList(0, c.from));
+                assertEquals(c.toString(), before.subList(c.oldTo, before.size()), after.subList(c.newTo, after.size()));
+            }
+        }
+    }
+
+    private TextDoc doc(int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(4)) {
+            case 0  : return txt("");
+            case 1  : return txt("a\nbb");
+            default : return txt("x" + "yyy".substring(random.nextInt(4)));
+            }
+        }
+        List<TextDoc> l = new ArrayList<>();
+        for (int n = 2 + random.nextInt(4), i = 0; i < n; i++)
+            l.add(doc(depth - 1));
+        switch (random.nextInt(7)) {
+        case 0  : return vcat(l);
+        case 1  : return hcat(l);
+        case 2  : return hali(l);
+        case 3  : return vcatIntercalate(l, random.nextBoolean() ? txt(",") : txt(""));
+        case 4  : return hcatIntercalate(l, txt("; "));
+        case 5  : return indent(2, l.get(0));
+        default : return new TextDoc.Table(Arrays.asList(l.subList(0, 2), Arrays.asList(doc(depth - 1), doc(depth - 1))));
+        }
+    }
+
+    private int[] path(TextDoc doc) {
+        List<Integer> p = new ArrayList<>();
+        for (List<TextDoc> cs = doc.accept(DocFold.children); ! cs.isEmpty() && random.nextInt(3) != 0; ) {
+            int i = random.nextInt(cs.size());
+            p.add(i);
+            cs = cs.get(i).accept(DocFold.children);
+        }
+        int[] path = new int[p.size()];
+        for (int i = 0; i < path.length; i++)
+            path[i] = p.get(i);
+        return path;
+    }
+
+    private static List<String> lines(TextBlock b) {
+        List<String> lines = new ArrayList<>();
+        for (TextLine l : b.lines)
+            lines.add(StringRenderer.render(l));
+        return lines;
+    }
+
+}
@@ -0,0 +1,52 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+import static maamissiniva.text.format.TextDocShortcuts.vstream;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class LineRangeTest {
+
+    @Test
+    public void rangeOfOnceOnlyStream() {
+        TextDoc doc = vcat(txt("a"), vstream(Stream.of(txt("x"), txt("y"), txt("z"))));
+        assertEquals(Arrays.asList("x", "y"), new StringRenderer().renderLines(doc, 1, 3));
+    }
+
+    @Test
+    public void streamPulledUpToEndOfRange() {
+        int[]             pulled = new int[1];
+        Iterator<TextDoc> rows   = IntStream.range(0, 1000).mapToObj(i -> {
+            pulled[0]++;
+            return txt("row " + i);
+        }).iterator();
+        TextDoc doc = vcat(txt("header"), indent(2, vstream(rows)), txt("footer"));
+        assertEquals(Arrays.asList("  row 9", "  row 10"), new StringRenderer().renderLines(doc, 10, 12));
+        assertEquals(11, pulled[0]);
+    }
+
+    @Test
+    public void toStringDoesNotPullStream() {
+        TextDoc doc = vcat(txt("a"), indent(2, vstream(Stream.of(txt("x"), txt("y")))));
+        assertEquals("a\n  <stream>", doc.toString());
+        assertEquals(Arrays.asList("  x", "  y"), new StringRenderer().renderLines(doc, 1, 3));
+    }
+
+    @Test
+    public void streamInsideConcatenation() {
+        TextDoc doc = vcat(txt("a"), hcat(txt("> "), vstream(Stream.of(txt("x"), txt("y")))), txt("b"));
+        assertEquals(Arrays.asList("  y", "b"), new StringRenderer().renderLines(doc, 2, 4));
+    }
+
+}
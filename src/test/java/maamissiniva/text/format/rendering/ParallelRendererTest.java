@@ -0,0 +1,70 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.empty;
+import static maamissiniva.text.format.TextDocShortcuts.hali;
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.hcatIntercalate;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+import static maamissiniva.text.format.TextDocShortcuts.vcatIntercalate;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class ParallelRendererTest {
+
+    private static void assertSameAsSequential(StringRenderer r, TextDoc doc) {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(StringRenderer.getText(r.render(doc)), StringRenderer.getText(r.render(doc, pool)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<TextDoc> items(int n) {
+        List<TextDoc> ds = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            ds.add(i % 3 == 0 ? txt("item " + i + "\nmore") : indent(i % 5, txt("item " + i)));
+        return ds;
+    }
+
+    @Test
+    public void listNodes() {
+        List<TextDoc> ds = items(100);
+        TextDoc doc = vcat(vcat(ds),
+                           hcat(ds),
+                           hali(ds),
+                           vcatIntercalate(ds, txt(",")),
+                           hcatIntercalate(ds, txt(", ")));
+        assertSameAsSequential(new StringRenderer().withParallelThreshold(4), doc);
+    }
+
+    @Test
+    public void table() {
+        List<List<TextDoc>> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            rows.add(Arrays.asList(txt("r" + i), txt("x\ny" + i), i % 7 == 0 ? empty : txt("z")));
+        assertSameAsSequential(new StringRenderer().withParallelThreshold(4), new TextDoc.Table(rows));
+    }
+
+    @Test(timeout = 10000)
+    public void sharedSubDocuments() {
+        // 2^30 paths lead to the large node at the bottom, the document has
+        // 32 nodes
+        TextDoc d = vcat(empty, empty, empty, empty, empty);
+        for (int i = 0; i < 30; i++)
+            d = new TextDoc.VerticalAlign(d, d);
+        TextDoc large = vcat(items(8));
+        assertSameAsSequential(new StringRenderer().memoizing().withParallelThreshold(4), hcat(txt("> "), vcat(large, d, large)));
+    }
+
+}
@@ -0,0 +1,77 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vstream;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class RenderAsyncTest {
+
+    @Test(timeout = 10000)
+    public void cancelStopsRender() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            // Endless stream, the render only ends when it is cancelled
+            Iterator<TextDoc> lines = new Iterator<TextDoc>() {
+                int line;
+                @Override public boolean hasNext() {
+                    return true;
+                }
+                @Override public TextDoc next() {
+                    started.countDown();
+                    return txt("line " + line++);
+                }
+            };
+            CompletableFuture<String> future = new StringRenderer().renderAsync(vstream(lines), executor);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(future.cancel(true));
+            // The thread of the render runs the next task once the render stopped
+            assertTrue(executor.submit(() -> true).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void queuedRenderTimesOut() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch  release  = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            long                      start  = System.nanoTime();
+            CompletableFuture<String> future = new StringRenderer().renderAsync(txt("x"), executor, 50, TimeUnit.MILLISECONDS);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("queued render completed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed + " ms", elapsed >= 50 && elapsed < 2000);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.hcat;
+import static maamissiniva.text.format.TextDocShortcuts.hole;
+import static maamissiniva.text.format.TextDocShortcuts.indent;
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class TemplateTest {
+
+    @Test
+    public void fill() {
+        TextDoc doc = indent(2, hcat(txt("f("), hole("x"), txt(", "), hole("y"), txt(")")));
+        assertEquals("  f(a, b\n       c)", Template.compile(doc).text(txt("a"), txt("b\nc")));
+    }
+
+    @Test
+    public void toStringShowsHoles() {
+        assertEquals("  f({x})", indent(2, hcat(txt("f("), hole("x"), txt(")"))).toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void renderingHolesThrows() {
+        indent(2, hole("x")).render();
+    }
+
+}
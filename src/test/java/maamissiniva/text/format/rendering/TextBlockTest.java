@@ -0,0 +1,36 @@
+package maamissiniva.text.format.rendering;
+
+import static maamissiniva.text.format.TextDocShortcuts.txt;
+import static maamissiniva.text.format.TextDocShortcuts.vcat;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import maamissiniva.text.format.TextDoc;
+
+public class TextBlockTest {
+
+    @Test(timeout = 10000)
+    public void leftNestedVerticalAlignments() {
+        TextDoc      doc      = txt("package a;");
+        List<String> expected = new ArrayList<>();
+        expected.add("package a;");
+        for (int i = 0; i < 5000; i++) {
+            doc = vcat(doc, txt(""), txt("import a.b.C" + i + ";"));
+            expected.add("");
+            expected.add("import a.b.C" + i + ";");
+        }
+        TextBlock    b     = new StringRenderer().render(doc);
+        List<String> lines = new ArrayList<>();
+        for (TextLine l : b.lines)
+            lines.add(StringRenderer.render(l));
+        assertEquals(expected, lines);
+        for (int i = 0; i < b.height; i++)
+            assertEquals(expected.get(i), StringRenderer.render(b.lines.get(i)));
+        assertEquals(String.join("\n", expected), StringRenderer.getText(b));
+    }
+
+}